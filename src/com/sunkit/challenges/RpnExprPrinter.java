@@ -49,6 +49,28 @@ public class RpnExprPrinter implements Expr.Visitor<String> {
         return "this";
     }
 
+    @Override
+    public String visitCompareExpr(Expr.Compare expr) {
+        return expr.left.name.lexeme + " " + expr.right.name.lexeme + " " + expr.operator.lexeme;
+    }
+
+    @Override
+    public String visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return expr.left.name.lexeme + " " + expr.constant + " " + expr.operator.lexeme;
+    }
+
+    @Override
+    public String visitCompoundExpr(Expr.Compound expr) {
+        String value = expr.name.lexeme + " " + expr.value.accept(this) + " " + expr.operator.lexeme;
+        return String.format("(Assign %s to %s)", value, expr.name.lexeme);
+    }
+
+    @Override
+    public String visitIncrementExpr(Expr.Increment expr) {
+        String value = expr.name.lexeme + " " + expr.delta + " +";
+        return String.format("(Assign %s to %s)", value, expr.name.lexeme);
+    }
+
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
         String left = expr.left.accept(this);
@@ -0,0 +1,33 @@
+package com.sunkit.lox;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by the current thread, on JVMs that can count them (HotSpot can).
+ */
+final class AllocationCounter {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private AllocationCounter() {}
+
+    static boolean isSupported() {
+        return THREADS != null;
+    }
+
+    /**
+     * @return The running total for the current thread, 0 when counting isn't supported
+     */
+    static long currentThreadBytes() {
+        if (THREADS == null) return 0;
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        }
+        return null;
+    }
+}
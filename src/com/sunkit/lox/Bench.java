@@ -0,0 +1,55 @@
+package com.sunkit.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The `bench(fn, iterations)` native: calls `fn` `iterations` times to warm it up, then
+ * times each of another `iterations` calls with {@link System#nanoTime()}. Returns a map
+ * with the `mean`, `p50` and `p99` time per call in nanoseconds and, when the JVM can count
+ * them, the bytes `allocated` per call. Times include the ~20ns of reading the clock.
+ */
+final class Bench {
+    static final int MAX_ITERATIONS = 10_000_000;
+
+    private Bench() {}
+
+    static LoxMap run(Interpreter interpreter, Token site, LoxCallable function, int iterations) {
+        List<Object> noArguments = List.of();
+        for (int i = 0; i < iterations; i++) {
+            interpreter.call(function, noArguments, site);
+        }
+
+        long[] samples = new long[iterations];
+        interpreter.heap.charge(HeapAccount.arrayBytes(iterations, Long.BYTES), site);
+
+        long allocated = AllocationCounter.currentThreadBytes();
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            interpreter.call(function, noArguments, site);
+            samples[i] = System.nanoTime() - start;
+            total += samples[i];
+        }
+        allocated = AllocationCounter.currentThreadBytes() - allocated;
+
+        Arrays.sort(samples);
+        LoxMap result = new LoxMap();
+        interpreter.heap.charge(LoxMap.initialBytes(), site);
+        result.put(interpreter.heap, site, "mean", (double) total / iterations);
+        result.put(interpreter.heap, site, "p50", (double) percentile(samples, 50));
+        result.put(interpreter.heap, site, "p99", (double) percentile(samples, 99));
+        if (AllocationCounter.isSupported()) {
+            result.put(interpreter.heap, site, "allocated", (double) allocated / iterations);
+        }
+        return result;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted samples.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
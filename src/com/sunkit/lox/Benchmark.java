@@ -0,0 +1,80 @@
+package com.sunkit.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Runs a Lox script repeatedly on a fresh interpreter and reports the time per run.
+ * Output printed by the script is discarded so only the interpreter is measured. The
+ * bytes allocated per run are reported too when the JVM can measure them.
+ * <p>
+ * Usage: benchmark [--limits] script [runs]
+ * <p>
+ * With `--limits` every run is given an instruction budget, a deadline and a cancellation
+ * token that are never reached, which shows the cost of the safepoint checks.
+ */
+public class Benchmark {
+    private static final int WARMUP_RUNS = 3;
+
+    public static void main(String[] args) throws IOException {
+        boolean withLimits = args.length > 0 && args[0].equals("--limits");
+        int first = withLimits ? 1 : 0;
+        if (args.length - first < 1 || args.length - first > 2) {
+            System.out.println("Usage: benchmark [--limits] script [runs]");
+            System.exit(64);
+        }
+
+        String file = args[first];
+        int runs = args.length - first == 2 ? Integer.parseInt(args[first + 1]) : 10;
+
+        ExecutionLimits limits = ExecutionLimits.NONE;
+        if (withLimits) {
+            limits = limits.withInstructionBudget(Long.MAX_VALUE / 2)
+                    .withTimeout(Duration.ofHours(1))
+                    .withCancellationToken(new CancellationToken());
+        }
+
+        String source = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        long allocated = 0;
+        for (int i = 0; i < WARMUP_RUNS + runs; i++) {
+            long bytes = AllocationCounter.currentThreadBytes();
+            long elapsed = run(statements, limits);
+            bytes = AllocationCounter.currentThreadBytes() - bytes;
+            if (i < WARMUP_RUNS) continue;
+
+            best = Math.min(best, elapsed);
+            total += elapsed;
+            allocated += bytes;
+        }
+
+        System.out.printf("%s%s: best %.2f ms, mean %.2f ms over %d runs%n",
+                file, withLimits ? " (limits)" : "", best / 1e6, total / 1e6 / runs, runs);
+        if (AllocationCounter.isSupported()) {
+            System.out.printf("allocated %.2f MB per run%n", allocated / 1e6 / runs);
+        }
+    }
+
+    private static long run(List<Stmt> statements, ExecutionLimits limits) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setExecutionLimits(limits);
+        // Output is still encoded, only the writes are discarded
+        interpreter.setOutput(new Output(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+        interpreter.allowFileAccess();
+        new Resolver(interpreter).resolve(statements);
+
+        long start = System.nanoTime();
+        interpreter.interpret(statements);
+        long elapsed = System.nanoTime() - start;
+        interpreter.closeFiles();
+        return elapsed;
+    }
+}
@@ -0,0 +1,15 @@
+package com.sunkit.lox;
+
+/**
+ * Where the resolver found a variable, and so how the interpreter reaches it.
+ */
+public enum Binding {
+    // Looked up by name in the global environment
+    GLOBAL,
+    // A slot of the current frame holding the value itself
+    LOCAL,
+    // A slot of the current frame holding a Cell, because a closure captures the variable
+    CELL,
+    // A Cell captured by the running closure, indexed into its upvalues
+    UPVALUE,
+}
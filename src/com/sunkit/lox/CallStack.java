@@ -0,0 +1,87 @@
+package com.sunkit.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Lox calls in progress, innermost last, kept for backtraces. Calls are pushed and
+ * popped by call sites. A call that throws is deliberately left on the stack, so when an
+ * error reaches the top of {@link Interpreter#interpret} the stack still shows where it
+ * was raised.
+ */
+final class CallStack {
+    // Backtraces of deep recursion keep this many frames from each end
+    private static final int BACKTRACE_EDGE = 10;
+
+    private LoxCallable[] callees = new LoxCallable[64];
+    private Token[] sites = new Token[64];
+    private int depth = 0;
+    private int maxDepth = Integer.MAX_VALUE;
+
+    void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    void push(LoxCallable callee, Token site) {
+        if (depth == maxDepth) {
+            throw new LoxRuntimeError(site, "Stack overflow.");
+        }
+        if (depth == callees.length) {
+            callees = Arrays.copyOf(callees, depth * 2);
+            sites = Arrays.copyOf(sites, depth * 2);
+        }
+        callees[depth] = callee;
+        sites[depth] = site;
+        depth++;
+    }
+
+    void pop() {
+        depth--;
+        // Don't keep the callee reachable
+        callees[depth] = null;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    /**
+     * @return Where the innermost call was made, or null outside of any call
+     */
+    Token innermostSite() {
+        return depth == 0 ? null : sites[depth - 1];
+    }
+
+    void clear() {
+        Arrays.fill(callees, 0, depth, null);
+        depth = 0;
+    }
+
+    /**
+     * Formats the stack like clox does, innermost frame first. The line of each frame is
+     * where it made the next call, or where `error` was raised for the innermost one.
+     */
+    List<String> backtrace(Token error) {
+        List<String> frames = new ArrayList<>(depth + 1);
+        int line = error.line;
+        for (int i = depth - 1; i >= 0; i--) {
+            boolean omitted = depth > 2 * BACKTRACE_EDGE && i < depth - BACKTRACE_EDGE && i >= BACKTRACE_EDGE;
+            if (!omitted) {
+                frames.add(String.format("[line %d] in %s()", line, name(callees[i])));
+            } else if (i == depth - BACKTRACE_EDGE - 1) {
+                frames.add(String.format("... %d more calls", depth - 2 * BACKTRACE_EDGE));
+            }
+            line = sites[i].line;
+        }
+        frames.add(String.format("[line %d] in script", line));
+        return frames;
+    }
+
+    private static String name(LoxCallable callee) {
+        if (callee instanceof LoxFunction function) return function.getDeclaration().name.lexeme;
+        if (callee instanceof NativeFunction function) return function.getName();
+        if (callee instanceof HostFunction function) return function.getName();
+        return callee.toString();
+    }
+}
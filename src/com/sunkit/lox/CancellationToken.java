@@ -0,0 +1,18 @@
+package com.sunkit.lox;
+
+/**
+ * A flag shared between a running script and whoever wants to stop it. The interpreter
+ * checks the token at its safepoints, so cancellation takes effect at the next loop
+ * back-edge or function entry rather than immediately.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
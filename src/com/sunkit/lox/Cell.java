@@ -0,0 +1,13 @@
+package com.sunkit.lox;
+
+/**
+ * Box for a local variable captured by a closure. The declaring frame and every closure
+ * that captures the variable share the same cell, so assignments are seen by all of them.
+ */
+public class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
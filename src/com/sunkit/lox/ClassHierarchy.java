@@ -0,0 +1,35 @@
+package com.sunkit.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records which class declarations define each method name, as the {@link Resolver} sees
+ * them. A method whose name only one class declares is never overridden, so a call site
+ * that found it for one class can reuse it for any subclass without looking it up again.
+ * <p>
+ * Declarations resolved later (the next REPL line, or the next declaration read from a
+ * stream) can override a method call sites already rely on. That bumps the version, which
+ * call sites compare against to drop what they inferred.
+ */
+final class ClassHierarchy {
+    private final Map<String, Integer> declarations = new HashMap<>();
+    private int version = 0;
+
+    void declare(Stmt.Class klass) {
+        for (Stmt.Function method : klass.methods) {
+            if (method.isStaticMethod) continue;
+
+            int count = declarations.merge(method.name.lexeme, 1, Integer::sum);
+            if (count == 2) version++;
+        }
+    }
+
+    boolean isOverridden(String method) {
+        return declarations.getOrDefault(method, 0) > 1;
+    }
+
+    int getVersion() {
+        return version;
+    }
+}
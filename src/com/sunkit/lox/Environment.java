@@ -1,68 +1,70 @@
 package com.sunkit.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Global variables. Locals live in {@link Frame}s instead.
+ * <p>
+ * Every global name gets a slot the first time it is declared or referenced, and keeps it
+ * for the life of the interpreter. The resolver stores the slot in the nodes that refer to
+ * the name, so reading a global is an array load. Since a slot is never reused for
+ * another name, redefining a global (as the REPL allows) writes to the same slot and
+ * every node that already refers to it stays valid.
+ */
 public class Environment {
-    private final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-
-    Environment() {
-        this.enclosing = null;
-    }
-
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    // Marks a slot whose name has been referenced but not defined yet
+    private static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private Object[] values = new Object[16];
+
+    /**
+     * @return The slot of the global `name`, allocating it if needed
+     */
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+
+        slot = slots.size();
+        if (slot == values.length) values = Arrays.copyOf(values, values.length * 2);
+        values[slot] = UNDEFINED;
+        slots.put(name, slot);
+        return slot;
     }
 
     public void define(String name, Object value) {
-        values.put(name, value);
-    }
-
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            assert environment != null;
-            environment = environment.enclosing;
-        }
-
-        return environment;
-    }
-
-    public Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+        // Allocating the slot may grow `values`, so it must happen before the array is read
+        int slot = slot(name);
+        values[slot] = value;
     }
 
-    public void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void define(int slot, Object value) {
+        values[slot] = value;
     }
 
     public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+        return get(slot(name.lexeme), name);
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    Object get(int slot, Token name) {
+        Object value = values[slot];
+        if (value != UNDEFINED) return value;
 
         throw new LoxRuntimeError(name, String.format("Undefined variable '%s'.", name.lexeme));
     }
 
     public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+        assign(slot(name.lexeme), name, value);
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+    void assign(int slot, Token name, Object value) {
+        if (values[slot] != UNDEFINED) {
+            values[slot] = value;
             return;
         }
 
         throw new LoxRuntimeError(name, String.format("Undefined variable '%s'.", name.lexeme));
     }
-
-    public Environment getEnclosing() {
-        return enclosing;
-    }
-
 }
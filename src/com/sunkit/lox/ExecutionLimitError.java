@@ -0,0 +1,13 @@
+package com.sunkit.lox;
+
+/**
+ * Thrown from a safepoint when a run exhausts one of its {@link ExecutionLimits} or is
+ * cancelled.
+ */
+public class ExecutionLimitError extends LoxRuntimeError {
+    private static final long serialVersionUID = 1L;
+
+    ExecutionLimitError(Token token, String message) {
+        super(token, message);
+    }
+}
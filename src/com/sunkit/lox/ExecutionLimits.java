@@ -0,0 +1,114 @@
+package com.sunkit.lox;
+
+import java.time.Duration;
+
+/**
+ * Resource limits applied to every call to {@link Interpreter#interpret(java.util.List)}, or
+ * to a whole session of calls, see {@link Interpreter#beginSession()}.
+ * An instance is immutable, use the `with*` methods to derive a configured copy.
+ */
+public class ExecutionLimits {
+    public static final ExecutionLimits NONE = new ExecutionLimits(Long.MAX_VALUE, null, null, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final long instructionBudget;
+    private final Duration timeout;
+    private final CancellationToken cancellationToken;
+    private final long allocationLimit;
+    private final int maxCallDepth;
+
+    private ExecutionLimits(long instructionBudget, Duration timeout, CancellationToken cancellationToken,
+                            long allocationLimit, int maxCallDepth) {
+        this.instructionBudget = instructionBudget;
+        this.timeout = timeout;
+        this.cancellationToken = cancellationToken;
+        this.allocationLimit = allocationLimit;
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    /**
+     * Reads limits for the command line interpreter from the `lox.maxInstructions`,
+     * `lox.timeoutMillis`, `lox.maxAllocation` and `lox.maxCallDepth` system properties.
+     * Missing properties leave the limit off.
+     */
+    static ExecutionLimits fromSystemProperties() {
+        ExecutionLimits limits = NONE;
+
+        Long maxInstructions = Long.getLong("lox.maxInstructions");
+        if (maxInstructions != null) limits = limits.withInstructionBudget(maxInstructions);
+
+        Long timeoutMillis = Long.getLong("lox.timeoutMillis");
+        if (timeoutMillis != null) limits = limits.withTimeout(Duration.ofMillis(timeoutMillis));
+
+        Long maxAllocation = Long.getLong("lox.maxAllocation");
+        if (maxAllocation != null) limits = limits.withAllocationLimit(maxAllocation);
+
+        Integer maxCallDepth = Integer.getInteger("lox.maxCallDepth");
+        if (maxCallDepth != null) limits = limits.withMaxCallDepth(maxCallDepth);
+
+        return limits;
+    }
+
+    /**
+     * Limits the number of loop iterations and function calls a single run may perform.
+     */
+    public ExecutionLimits withInstructionBudget(long instructionBudget) {
+        if (instructionBudget <= 0) {
+            throw new IllegalArgumentException("Instruction budget must be positive.");
+        }
+        return new ExecutionLimits(instructionBudget, timeout, cancellationToken, allocationLimit, maxCallDepth);
+    }
+
+    /**
+     * Limits the wall-clock time of a single run, measured from the start of the run.
+     */
+    public ExecutionLimits withTimeout(Duration timeout) {
+        return new ExecutionLimits(instructionBudget, timeout, cancellationToken, allocationLimit, maxCallDepth);
+    }
+
+    public ExecutionLimits withCancellationToken(CancellationToken cancellationToken) {
+        return new ExecutionLimits(instructionBudget, timeout, cancellationToken, allocationLimit, maxCallDepth);
+    }
+
+    /**
+     * Limits the approximate number of bytes a single run may allocate in total, see
+     * {@link HeapAccount}. Memory is never credited back when it becomes garbage, so this is
+     * a quota on the work a run does rather than a bound on its live heap.
+     */
+    public ExecutionLimits withAllocationLimit(long allocationLimit) {
+        if (allocationLimit <= 0) {
+            throw new IllegalArgumentException("Allocation limit must be positive.");
+        }
+        return new ExecutionLimits(instructionBudget, timeout, cancellationToken, allocationLimit, maxCallDepth);
+    }
+
+    /**
+     * Limits how deeply Lox calls may nest. Without it, recursion is only bounded by the
+     * stack of the thread running the interpreter.
+     */
+    public ExecutionLimits withMaxCallDepth(int maxCallDepth) {
+        if (maxCallDepth <= 0) {
+            throw new IllegalArgumentException("Call depth limit must be positive.");
+        }
+        return new ExecutionLimits(instructionBudget, timeout, cancellationToken, allocationLimit, maxCallDepth);
+    }
+
+    public long getInstructionBudget() {
+        return instructionBudget;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    public long getAllocationLimit() {
+        return allocationLimit;
+    }
+
+    public int getMaxCallDepth() {
+        return maxCallDepth;
+    }
+}
@@ -16,7 +16,14 @@ public abstract class Expr {
     R visitThisExpr(This expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
+    R visitCompareExpr(Compare expr);
+    R visitCompareConstantExpr(CompareConstant expr);
+    R visitCompoundExpr(Compound expr);
+    R visitIncrementExpr(Increment expr);
   }
+
+  // Filled in by the StackMachine, whether running the node can call Lox code or unwind
+  byte suspends;
   public static class Assign extends Expr {
     public Assign(Token name, Expr value) {
         this.name = name;
@@ -30,6 +37,10 @@ public abstract class Expr {
 
     public final Token name;
     public final Expr value;
+
+    // Filled in by the Resolver
+    public Binding binding = Binding.GLOBAL;
+    public int index;
   }
   public static class Call extends Expr {
     public Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -60,6 +71,14 @@ public abstract class Expr {
 
     public final Expr object;
     public final Token name;
+
+    // Filled in by the Resolver
+    public LoxClass layoutClass;
+    public int layoutSlot = -1;
+    public LoxClass methodClass;
+    public LoxFunction method;
+    public LoxClass methodHolder;
+    public int hierarchyVersion;
   }
   public static class Binary extends Expr {
     public Binary(Expr left, Token operator, Expr right) {
@@ -132,6 +151,10 @@ public abstract class Expr {
     public final Expr object;
     public final Token name;
     public final Expr value;
+
+    // Filled in by the Resolver
+    public LoxClass layoutClass;
+    public int layoutSlot = -1;
   }
   public static class Super extends Expr {
     public Super(Token keyword, Token method) {
@@ -146,6 +169,12 @@ public abstract class Expr {
 
     public final Token keyword;
     public final Token method;
+
+    // Filled in by the Resolver
+    public Binding binding;
+    public int index;
+    public Binding thisBinding;
+    public int thisIndex;
   }
   public static class This extends Expr {
     public This(Token keyword) {
@@ -158,6 +187,10 @@ public abstract class Expr {
     }
 
     public final Token keyword;
+
+    // Filled in by the Resolver
+    public Binding binding;
+    public int index;
   }
   public static class Unary extends Expr {
     public Unary(Token operator, Expr right) {
@@ -184,6 +217,84 @@ public abstract class Expr {
     }
 
     public final Token name;
+
+    // Filled in by the Resolver
+    public Binding binding = Binding.GLOBAL;
+    public int index;
+  }
+  public static class Compare extends Expr {
+    public Compare(Expr.Variable left, Token operator, Expr.Variable right) {
+        this.left = left;
+        this.operator = operator;
+        this.right = right;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCompareExpr(this);
+    }
+
+    public final Expr.Variable left;
+    public final Token operator;
+    public final Expr.Variable right;
+  }
+  public static class CompareConstant extends Expr {
+    public CompareConstant(Expr.Variable left, Token operator, double constant) {
+        this.left = left;
+        this.operator = operator;
+        this.constant = constant;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCompareConstantExpr(this);
+    }
+
+    public final Expr.Variable left;
+    public final Token operator;
+    public final double constant;
+  }
+  public static class Compound extends Expr {
+    public Compound(Token name, Token operator, Expr value) {
+        this.name = name;
+        this.operator = operator;
+        this.value = value;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCompoundExpr(this);
+    }
+
+    public final Token name;
+    public final Token operator;
+    public final Expr value;
+
+    // Filled in by the Resolver
+    public Binding binding = Binding.GLOBAL;
+    public int index;
+    public Specialization state = Specialization.UNINITIALIZED;
+  }
+  public static class Increment extends Expr {
+    public Increment(Token name, Token operator, double delta) {
+        this.name = name;
+        this.operator = operator;
+        this.delta = delta;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIncrementExpr(this);
+    }
+
+    public final Token name;
+    public final Token operator;
+    public final double delta;
+
+    // Filled in by the Resolver
+    public Binding binding = Binding.GLOBAL;
+    public int index;
+    public Specialization state = Specialization.UNINITIALIZED;
   }
 
 public abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,73 @@
+package com.sunkit.lox;
+
+/**
+ * Storage for the local variables of one function call, addressed by the slot numbers the
+ * {@link Resolver} assigns. Blocks never get frames of their own: their locals are hoisted
+ * into the frame of the function. Variables captured by closures are reached through the
+ * frame's upvalues instead of through enclosing frames.
+ * <p>
+ * A slot can also hold an unboxed number, written by nodes specialized on numbers (see
+ * {@link Specialization}). It is boxed the first time something reads it as an object, and
+ * the box is kept until the next write so repeated reads don't allocate.
+ */
+public class Frame {
+    static final Cell[] NO_UPVALUES = new Cell[0];
+
+    // Marks a slot whose value is in `numbers`
+    private static final Object UNBOXED = new Object();
+
+    private final Object[] slots;
+    private final Cell[] upvalues;
+    // Only allocated once a number is stored unboxed
+    private double[] numbers = null;
+
+    Frame(int size, Cell[] upvalues) {
+        this.slots = new Object[size];
+        this.upvalues = upvalues;
+    }
+
+    public Object get(int slot) {
+        Object value = slots[slot];
+        if (value == UNBOXED) {
+            value = numbers[slot];
+            slots[slot] = value;
+        }
+        return value;
+    }
+
+    public void set(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    boolean hasNumber(int slot) {
+        Object value = slots[slot];
+        return value == UNBOXED || value instanceof Double;
+    }
+
+    /**
+     * Reads a slot {@link #hasNumber(int)} said holds a number, without boxing it.
+     */
+    double getNumber(int slot) {
+        Object value = slots[slot];
+        if (value == UNBOXED) return numbers[slot];
+        return (Double) value;
+    }
+
+    void setNumber(int slot, double value) {
+        if (numbers == null) numbers = new double[slots.length];
+        numbers[slot] = value;
+        slots[slot] = UNBOXED;
+    }
+
+    public Cell getCell(int slot) {
+        return (Cell) slots[slot];
+    }
+
+    public Cell getUpvalue(int index) {
+        return upvalues[index];
+    }
+
+    public int size() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,124 @@
+package com.sunkit.lox;
+
+/**
+ * Approximate accounting of the memory a run allocates. Heap objects (instances, fields,
+ * closures, cells of captured variables, arrays and strings built by concatenation or read from files) are charged
+ * when they are created and never credited back, so the total is an allocation quota rather than a live heap size.
+ * Frames are stack-like and are only counted while their function is executing.
+ * <p>
+ * Sizes are estimates for a 64-bit JVM with compressed oops and compact strings.
+ */
+final class HeapAccount {
+    private static final long INSTANCE_BYTES = 24;
+    // A HashMap, the initial capacity of its table and one of its entries
+    private static final long HASH_MAP_BYTES = 48;
+    private static final int HASH_TABLE_CAPACITY = 16;
+    private static final long HASH_ENTRY_BYTES = 32;
+    static final long CELL_BYTES = 16;
+    private static final long CLOSURE_BYTES = 32;
+    private static final long ARRAY_HEADER_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+    private static final long FRAME_HEADER_BYTES = 32;
+    private static final long STRING_HEADER_BYTES = 40;
+    static final long ROPE_BYTES = 40;
+
+    private long allocated = 0;
+    private long limit = Long.MAX_VALUE;
+
+    void reset(long limit) {
+        this.allocated = 0;
+        this.limit = limit;
+    }
+
+    void removeLimit() {
+        this.limit = Long.MAX_VALUE;
+    }
+
+    static long frameBytes(int slots) {
+        return FRAME_HEADER_BYTES + 4L * slots;
+    }
+
+    /**
+     * An instance with `fields` slots laid out by its class. Fields outside the layout are
+     * charged as they are added, see {@link #overflowFieldBytes(int)}.
+     */
+    static long instanceBytes(int fields) {
+        if (fields == 0) return INSTANCE_BYTES;
+        return INSTANCE_BYTES + ARRAY_HEADER_BYTES + 4L * fields;
+    }
+
+    /**
+     * The backing array of a Lox array with room for `length` elements.
+     */
+    static long arrayBytes(int length, int elementBytes) {
+        return ARRAY_HEADER_BYTES + (long) elementBytes * length;
+    }
+
+    /**
+     * Adding the `fields`th field to the overflow map of an instance: an entry, plus the map
+     * and its table for the first field, or the doubled table when the map grows past 3/4
+     * of its capacity like {@link java.util.HashMap} does.
+     */
+    static long overflowFieldBytes(int fields) {
+        long bytes = HASH_ENTRY_BYTES;
+        int threshold = HASH_TABLE_CAPACITY * 3 / 4;
+        if (fields == 1) {
+            bytes += HASH_MAP_BYTES + ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES * HASH_TABLE_CAPACITY;
+        } else if (fields > threshold && (fields - 1) % threshold == 0
+                && Integer.bitCount((fields - 1) / threshold) == 1) {
+            long capacity = 2L * HASH_TABLE_CAPACITY * ((fields - 1) / threshold);
+            bytes += ARRAY_HEADER_BYTES + REFERENCE_BYTES * capacity;
+        }
+        return bytes;
+    }
+
+    static long closureBytes(int upvalues) {
+        if (upvalues == 0) return CLOSURE_BYTES;
+        return CLOSURE_BYTES + ARRAY_HEADER_BYTES + 4L * upvalues;
+    }
+
+    static long stringBytes(String string) {
+        return STRING_HEADER_BYTES + string.length();
+    }
+
+    /**
+     * Flattening a rope of `length` characters: the array the leaves are copied into and
+     * the string made from it.
+     */
+    static long flattenedBytes(int length) {
+        return ARRAY_HEADER_BYTES + 2L * length + STRING_HEADER_BYTES + length;
+    }
+
+    /**
+     * Charges an allocation. Going over the limit is reported at the next safepoint.
+     */
+    void charge(long bytes) {
+        allocated += bytes;
+    }
+
+    /**
+     * Charges an allocation and fails right away when it goes over the limit. Used where
+     * a single allocation can be arbitrarily large.
+     */
+    void charge(long bytes, Token location) {
+        allocated += bytes;
+        if (allocated > limit) throw limitExceeded(location);
+    }
+
+    void release(long bytes) {
+        allocated -= bytes;
+    }
+
+    boolean isOverLimit() {
+        return allocated > limit;
+    }
+
+    ExecutionLimitError limitExceeded(Token location) {
+        return new ExecutionLimitError(location, String.format(
+                "Script exceeded its allocation limit of %d bytes.", limit));
+    }
+
+    long getAllocated() {
+        return allocated;
+    }
+}
@@ -0,0 +1,193 @@
+package com.sunkit.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/**
+ * A Java method exposed to scripts, see {@link Interpreter#defineNative(String, MethodHandle)}.
+ * The conversions between Lox values and the method's parameter and return types are
+ * composed into the handle once, when it is bound. Calls with up to {@link #MAX_DIRECT_ARITY}
+ * arguments then invoke it directly, without an argument list.
+ */
+final class HostFunction implements LoxCallable {
+    static final int MAX_DIRECT_ARITY = 3;
+
+    private static final MethodHandle TO_NUMBER;
+    private static final MethodHandle TO_BOOLEAN;
+    private static final MethodHandle TO_STRING;
+    private static final MethodHandle TO_VALUE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType converter = MethodType.methodType(Object.class, int.class, Object.class);
+            TO_NUMBER = lookup.findStatic(HostFunction.class, "toNumber", converter.changeReturnType(double.class));
+            TO_BOOLEAN = lookup.findStatic(HostFunction.class, "toBoolean", converter.changeReturnType(boolean.class));
+            TO_STRING = lookup.findStatic(HostFunction.class, "toText", converter.changeReturnType(String.class));
+            TO_VALUE = lookup.findStatic(HostFunction.class, "toValue", converter);
+        } catch (ReflectiveOperationException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    private final String name;
+    private final int arity;
+    // Takes `arity` Objects and returns an Object
+    private final MethodHandle invoker;
+
+    private HostFunction(String name, int arity, MethodHandle invoker) {
+        this.name = name;
+        this.arity = arity;
+        this.invoker = invoker;
+    }
+
+    /**
+     * Adapts `target` to take and return Lox values.
+     *
+     * @throws IllegalArgumentException when a parameter or the return type has no Lox
+     * equivalent
+     */
+    static HostFunction bind(String name, MethodHandle target) {
+        MethodHandle handle = target.asFixedArity();
+        MethodType type = handle.type();
+
+        for (int i = 0; i < type.parameterCount(); i++) {
+            Class<?> parameter = type.parameterType(i);
+            MethodHandle converter;
+            if (parameter == Object.class) {
+                converter = TO_VALUE;
+            } else if (parameter == double.class) {
+                converter = TO_NUMBER;
+            } else if (parameter == boolean.class) {
+                converter = TO_BOOLEAN;
+            } else if (parameter == String.class) {
+                converter = TO_STRING;
+            } else {
+                throw new IllegalArgumentException(String.format(
+                        "Parameter %d of native '%s' has type %s, expected double, boolean, String or Object.",
+                        i + 1, name, parameter.getName()));
+            }
+            handle = MethodHandles.filterArguments(handle, i, MethodHandles.insertArguments(converter, 0, i));
+        }
+
+        Class<?> result = type.returnType();
+        if (result == int.class || result == long.class || result == float.class) {
+            // Lox only has doubles
+            handle = handle.asType(handle.type().changeReturnType(double.class));
+        } else if (result != double.class && result != boolean.class && result != void.class
+                && result != String.class && result != Object.class) {
+            throw new IllegalArgumentException(String.format(
+                    "Native '%s' returns %s, expected a number, boolean, String, Object or void.",
+                    name, result.getName()));
+        }
+
+        // Boxes primitive results and turns void into nil
+        handle = handle.asType(MethodType.genericMethodType(type.parameterCount()));
+        return new HostFunction(name, type.parameterCount(), handle);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    /**
+     * Calls a function of at most {@link #MAX_DIRECT_ARITY} parameters, unused arguments are
+     * ignored.
+     */
+    Object invoke(Token site, Object first, Object second, Object third) {
+        try {
+            return switch (arity) {
+                case 0 -> (Object) invoker.invokeExact();
+                case 1 -> (Object) invoker.invokeExact(first);
+                case 2 -> (Object) invoker.invokeExact(first, second);
+                case 3 -> (Object) invoker.invokeExact(first, second, third);
+                default -> throw new IllegalStateException("Too many arguments for a direct call.");
+            };
+        } catch (Throwable error) {
+            throw failure(site, error);
+        }
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Token site = interpreter.callStack.innermostSite();
+        if (arity <= MAX_DIRECT_ARITY) {
+            Object first = arity > 0 ? arguments.get(0) : null;
+            Object second = arity > 1 ? arguments.get(1) : null;
+            Object third = arity > 2 ? arguments.get(2) : null;
+            return invoke(site, first, second, third);
+        }
+
+        try {
+            return invoker.invokeWithArguments(arguments);
+        } catch (Throwable error) {
+            throw failure(site, error);
+        }
+    }
+
+    /**
+     * Reports what went wrong inside a native as a Lox error at the call site. JVM errors
+     * such as a stack overflow are left to the interpreter.
+     */
+    private RuntimeException failure(Token site, Throwable error) {
+        if (error instanceof Error fatal) throw fatal;
+        if (error instanceof LoxRuntimeError loxError) return loxError;
+        if (error instanceof ArgumentError argument) {
+            return new LoxRuntimeError(site, String.format(
+                    "Expected %s as argument %d to '%s'.", argument.expected, argument.index + 1, name));
+        }
+        return new LoxRuntimeError(site, String.format("Native '%s' failed: %s", name, error));
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+
+    private static double toNumber(int index, Object value) {
+        if (value instanceof Double number) return number;
+        throw new ArgumentError(index, "a number");
+    }
+
+    private static boolean toBoolean(int index, Object value) {
+        if (value instanceof Boolean bool) return bool;
+        throw new ArgumentError(index, "a boolean");
+    }
+
+    private static String toText(int index, Object value) {
+        if (Rope.isString(value)) return value.toString();
+        throw new ArgumentError(index, "a string");
+    }
+
+    /**
+     * Passes any value, but as a {@link String} when it is a string built by concatenation,
+     * so the method never sees the interpreter's {@link Rope}.
+     */
+    private static Object toValue(int index, Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    /**
+     * An argument that doesn't convert to its parameter's type. It is turned into a
+     * {@link LoxRuntimeError} once the call site is known.
+     */
+    private static final class ArgumentError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+        final String expected;
+
+        ArgumentError(int index, String expected) {
+            super(null, null, false, false);
+            this.index = index;
+            this.expected = expected;
+        }
+    }
+}
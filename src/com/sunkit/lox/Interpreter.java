@@ -1,65 +1,338 @@
 package com.sunkit.lox;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+    // Longest string the JVM can allocate
+    private static final int MAX_STRING_LENGTH = Integer.MAX_VALUE - 8;
+
     private final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+    private Frame frame = null;
+    private int scriptFrameSize = 0;
+    final HeapAccount heap = new HeapAccount();
+    final ClassHierarchy hierarchy = new ClassHierarchy();
+    final CallStack callStack = new CallStack();
+    private ExecutionLimits limits = ExecutionLimits.NONE;
+    // Set between beginSession() and endSession(), while the limits stay armed
+    private boolean inSession = false;
+    private Output output = Output.stdout(Output.DEFAULT_BUFFER_SIZE, Output.DEFAULT_FLUSH_INTERVAL);
+    final Safepoint safepoint = new Safepoint(heap, output);
+    // Reused to format numbers and concatenations, strings are only created for the result
+    private StringBuilder scratch = new StringBuilder();
+    private int memoCacheSize = 0;
+    // Runs Lox calls on the heap instead of the Java stack, null unless enabled
+    private StackMachine machine = null;
+    private final Set<Stmt.Function> pureFunctions = new HashSet<>();
+    private final List<MemoizedFunction> memoizedFunctions = new ArrayList<>();
+    // Files opened by the script and not closed yet
+    private final Set<Closeable> openFiles = new LinkedHashSet<>();
+
+    /**
+     * Creates an interpreter with the built-in natives, printing to standard output and
+     * without limits. Embedders configure it with {@link #defineNative(String, MethodHandle)},
+     * {@link #setExecutionLimits(ExecutionLimits)} and {@link #setOutput(Output)}.
+     */
+    public Interpreter() {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            defineNative("clock", lookup.findStatic(Interpreter.class, "clock", MethodType.methodType(double.class)));
+            defineNative("nanoTime", lookup.findStatic(System.class, "nanoTime", MethodType.methodType(long.class)));
+
+            MethodType unary = MethodType.methodType(double.class, double.class);
+            defineNative("sqrt", lookup.findStatic(Math.class, "sqrt", unary));
+            defineNative("floor", lookup.findStatic(Math.class, "floor", unary));
+            defineNative("abs", lookup.findStatic(Math.class, "abs", unary));
+            defineNative("pow", lookup.findStatic(Math.class, "pow", unary.appendParameterTypes(double.class)));
+        } catch (ReflectiveOperationException error) {
+            throw new IllegalStateException(error);
+        }
+
+        defineNative("Array", 0, (interpreter, site, arguments) -> {
+            interpreter.heap.charge(HeapAccount.arrayBytes(0, 0));
+            return new LoxArray();
+        });
+
+        defineNative("Map", 0, (interpreter, site, arguments) -> {
+            interpreter.heap.charge(LoxMap.initialBytes());
+            return new LoxMap();
+        });
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
+        defineNative("range", 3, (interpreter, site, arguments) -> {
+            for (Object argument : arguments) {
+                if (!(argument instanceof Double)) {
+                    throw new LoxRuntimeError(site, "Range bounds and step must be numbers.");
+                }
             }
+            double step = (double) arguments.get(2);
+            if (step == 0) throw new LoxRuntimeError(site, "Range step can't be 0.");
+            return new LoxRange((double) arguments.get(0), (double) arguments.get(1), step);
+        });
 
-            @Override
-            public String toString() {
-                return "<native fn>";
+        defineNative("bench", 2, (interpreter, site, arguments) -> {
+            if (!(arguments.get(0) instanceof LoxCallable function) || function.arity() != 0) {
+                throw new LoxRuntimeError(site, "Can only benchmark functions without parameters.");
             }
+            if (!(arguments.get(1) instanceof Double iterations)
+                    || iterations != Math.floor(iterations)
+                    || iterations < 1 || iterations > Bench.MAX_ITERATIONS) {
+                throw new LoxRuntimeError(site, String.format(
+                        "Iterations must be an integer between 1 and %d.", Bench.MAX_ITERATIONS));
+            }
+            return Bench.run(interpreter, site, function, (int) (double) iterations);
         });
     }
 
+    /**
+     * Defines the natives that read and write files: `openFile(path)` and `mapFile(path)`
+     * return a reader ({@link LoxFileReader}), `createFile(path)` a writer
+     * ({@link LoxFileWriter}) and `readFile(path)` the whole file as a string. Files are
+     * UTF-8. They are left out unless enabled, so embedders don't hand scripts the file
+     * system by accident.
+     */
+    public void allowFileAccess() {
+        defineNative("openFile", 1, (interpreter, site, arguments) ->
+                interpreter.openFile(arguments.get(0), site, path -> LoxFileReader.open(path, false)));
+        defineNative("mapFile", 1, (interpreter, site, arguments) ->
+                interpreter.openFile(arguments.get(0), site, path -> LoxFileReader.open(path, true)));
+        defineNative("createFile", 1, (interpreter, site, arguments) ->
+                interpreter.openFile(arguments.get(0), site, LoxFileWriter::create));
+        defineNative("readFile", 1, (interpreter, site, arguments) ->
+                interpreter.openFile(arguments.get(0), site, path -> {
+                    String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                    interpreter.heap.charge(HeapAccount.stringBytes(text), site);
+                    return text;
+                }));
+    }
+
+    private interface FileOpener {
+        Object open(Path path) throws IOException;
+    }
+
+    /**
+     * Runs `opener` on the file named by `name`, and keeps track of the file it returns
+     * until it is closed.
+     */
+    private Object openFile(Object name, Token site, FileOpener opener) {
+        if (!Rope.isString(name)) throw new LoxRuntimeError(site, "File path must be a string.");
+
+        Path path;
+        try {
+            path = Paths.get(name.toString());
+        } catch (InvalidPathException error) {
+            throw new LoxRuntimeError(site, "Invalid file path '" + name + "'.");
+        }
+
+        Object result;
+        try {
+            result = opener.open(path);
+        } catch (NoSuchFileException error) {
+            throw new LoxRuntimeError(site, "File '" + path + "' not found.");
+        } catch (AccessDeniedException error) {
+            throw new LoxRuntimeError(site, "Access to '" + path + "' denied.");
+        } catch (IOException error) {
+            throw new LoxRuntimeError(site, "Could not open '" + path + "'.");
+        }
+
+        if (result instanceof Closeable file) openFiles.add(file);
+        return result;
+    }
+
+    void closed(Closeable file) {
+        openFiles.remove(file);
+    }
+
+    /**
+     * Closes the files the script left open, writing out what is buffered for them.
+     *
+     * @return False when some file could not be written
+     */
+    public boolean closeFiles() {
+        boolean succeeded = true;
+        for (Closeable file : openFiles) {
+            try {
+                file.close();
+            } catch (IOException error) {
+                succeeded = false;
+            }
+        }
+        openFiles.clear();
+        return succeeded;
+    }
+
+    private static double clock() {
+        return (double) System.currentTimeMillis() / 1000.0;
+    }
+
+    /**
+     * Exposes a Java method as the global function `name`. Its parameters can be `double`,
+     * `boolean`, `String` or `Object` (any Lox value, nil is null). It can return any of
+     * those, another primitive number type or `void` (nil). Lambdas are bound through the
+     * method of their functional interface, e.g.
+     * `publicLookup().findVirtual(DoubleBinaryOperator.class, "applyAsDouble", type).bindTo(lambda)`.
+     * <p>
+     * Arguments are checked and converted by the handle itself, calls with up to three
+     * arguments don't allocate an argument list.
+     *
+     * @throws IllegalArgumentException when a parameter or the return type isn't supported
+     */
+    public void defineNative(String name, MethodHandle target) {
+        globals.define(name, HostFunction.bind(name, target));
+    }
+
+    private void defineNative(String name, int arity, NativeFunction.Body body) {
+        globals.define(name, new NativeFunction(name, arity, body));
+    }
+
+    public void setExecutionLimits(ExecutionLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Sends the output of `print` statements to `output`. It is buffered, callers flush it
+     * when it must become visible.
+     */
+    public void setOutput(Output output) {
+        this.output = output;
+        safepoint.setOutput(output);
+    }
+
+    public Output getOutput() {
+        return output;
+    }
+
+    /**
+     * Turns on memoization of pure functions with a cache of `cacheSize` results per
+     * function. A size of 0 turns it off.
+     */
+    public void setMemoization(int cacheSize) {
+        this.memoCacheSize = cacheSize;
+    }
+
+    public boolean isMemoizing() {
+        return memoCacheSize > 0;
+    }
+
+    public List<MemoizedFunction> getMemoizedFunctions() {
+        return memoizedFunctions;
+    }
+
+    /**
+     * Runs scripts on an explicit stack of up to `maxStackBytes` (approximately) instead of
+     * the Java stack, see {@link StackMachine}. Recursion is then only bounded by that
+     * size, and going over it is a `Stack overflow.` runtime error. It is slower than
+     * the default recursive evaluation. A size of 0 turns it off.
+     */
+    public void setExplicitStack(long maxStackBytes) {
+        this.machine = maxStackBytes > 0 ? new StackMachine(this, maxStackBytes) : null;
+    }
+
+    /**
+     * Approximate number of bytes the current (or last) run has allocated so far, see
+     * {@link HeapAccount}. This is the total the allocation limit is checked against, not the
+     * size of the data still live. The value is not synchronized and may lag behind when read
+     * from another thread.
+     */
+    public long getAllocatedBytes() {
+        return heap.getAllocated();
+    }
+
+    /**
+     * Runs `statements` under the configured {@link ExecutionLimits}. Errors in the script are
+     * reported like the command line interpreter does, but hitting a limit is left to the
+     * caller.
+     *
+     * @throws ExecutionLimitError when the run exhausts one of its limits or is cancelled,
+     * with the Lox backtrace of the point where it was stopped
+     */
     public void interpret(List<Stmt> statements) {
+        if (!inSession) safepoint.arm(limits);
+        callStack.setMaxDepth(limits.getMaxCallDepth());
+        frame = new Frame(scriptFrameSize, Frame.NO_UPVALUES);
         try {
-            for (Stmt statement : statements) {
-                execute(statement);
+            if (machine != null) {
+                machine.execute(statements);
+            } else {
+                for (Stmt statement : statements) {
+                    execute(statement);
+                }
             }
         } catch (LoopControlException error) {
-            Lox.runtimeError(new LoxRuntimeError(error.keyword, "'break' or 'continue' outside of a loop."));
+            LoxRuntimeError runtimeError = new LoxRuntimeError(error.keyword, "'break' or 'continue' outside of a loop.");
+            runtimeError.setBacktrace(callStack.backtrace(error.keyword));
+            Lox.runtimeError(runtimeError);
+        } catch (ExecutionLimitError error) {
+            error.setBacktrace(callStack.backtrace(error.token));
+            throw error;
         } catch (LoxRuntimeError error) {
+            error.setBacktrace(callStack.backtrace(error.token));
             Lox.runtimeError(error);
+        } catch (StackOverflowError error) {
+            // The thread's stack ran out before any call depth limit. The Lox call stack is
+            // still intact, and nothing can be reported outside of a call anyway. Like the
+            // depth limit, blame the innermost call as if it was never made.
+            Token site = callStack.innermostSite();
+            if (site == null) throw error;
+            callStack.pop();
+
+            LoxRuntimeError overflow = new LoxRuntimeError(site, "Stack overflow.");
+            overflow.setBacktrace(callStack.backtrace(site));
+            Lox.runtimeError(overflow);
+        } finally {
+            callStack.clear();
+            if (!inSession) safepoint.disarm();
         }
     }
 
+    /**
+     * Makes the following calls to {@link #interpret(List)} one run as far as the limits are
+     * concerned, for a program that is executed piece by piece as it is read. They share the
+     * instruction budget, the deadline and the allocation total until {@link #endSession()}.
+     */
+    public void beginSession() {
+        safepoint.arm(limits);
+        inSession = true;
+    }
+
+    public void endSession() {
+        inSession = false;
+        safepoint.disarm();
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binary(expr.operator, left, right);
+    }
 
-        switch (expr.operator.type) {
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left <= (double) right;
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
@@ -68,21 +341,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
                 if (left instanceof String && right instanceof String) {
                     //noinspection RedundantCast
-                    return (String) left + (String) right;
+                    return concatenate(operator, (String) left, (String) right);
                 }
 
                 // Challenge 7.2: Concatenating strings and numbers in lox
                 // NOTE: This will also allow functions and classes to be concatenated with strings
-                if (left instanceof String || right instanceof String) {
-                    return stringify(left) + stringify(right);
+                if (Rope.isString(left) || Rope.isString(right)) {
+                    return concatenate(operator, left, right);
                 }
 
-                throw new LoxRuntimeError(expr.operator, "Operands must be two numbers or two concatenable types (a string and a number, etc.).");
+                throw new LoxRuntimeError(operator, "Operands must be two numbers or two concatenable types (a string and a number, etc.).");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left / (double) right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
@@ -93,13 +366,241 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Object visitCompareExpr(Expr.Compare expr) {
+        Expr.Variable left = expr.left;
+        Expr.Variable right = expr.right;
+        if (left.binding == Binding.LOCAL && right.binding == Binding.LOCAL
+                && frame.hasNumber(left.index) && frame.hasNumber(right.index)) {
+            return compare(expr.operator, frame.getNumber(left.index), frame.getNumber(right.index));
+        }
+
+        Object a = lookUp(left.binding, left.index, left.name);
+        Object b = lookUp(right.binding, right.index, right.name);
+        if (a instanceof Double x && b instanceof Double y) {
+            return compare(expr.operator, x, y);
+        }
+        return binary(expr.operator, a, b);
+    }
+
+    @Override
+    public Object visitCompareConstantExpr(Expr.CompareConstant expr) {
+        Expr.Variable left = expr.left;
+        if (left.binding == Binding.LOCAL && frame.hasNumber(left.index)) {
+            return compare(expr.operator, frame.getNumber(left.index), expr.constant);
+        }
+
+        Object value = lookUp(left.binding, left.index, left.name);
+        if (value instanceof Double number) {
+            return compare(expr.operator, number, expr.constant);
+        }
+        return binary(expr.operator, value, expr.constant);
+    }
+
+    private boolean compare(Token operator, double left, double right) {
+        return switch (operator.type) {
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            // Unreachable
+            default -> false;
+        };
+    }
+
+    double arithmetic(Token operator, double left, double right) {
+        return switch (operator.type) {
+            case PLUS -> left + right;
+            case MINUS -> left - right;
+            case STAR -> left * right;
+            case SLASH -> left / right;
+            // Unreachable
+            default -> Double.NaN;
+        };
+    }
+
+    @Override
+    public Object visitCompoundExpr(Expr.Compound expr) {
+        compound(expr);
+        return lookUp(expr.binding, expr.index, expr.name);
+    }
+
+    /**
+     * Performs `x = x op y`. While `x` is a local that only ever held numbers it stays
+     * unboxed in the frame; the first time it (or `y`) isn't a number the node deoptimizes
+     * to the generic path for good.
+     */
+    private void compound(Expr.Compound expr) {
+        int slot = expr.index;
+        if (expr.state != Specialization.GENERIC && expr.binding == Binding.LOCAL && frame.hasNumber(slot)) {
+            double left = frame.getNumber(slot);
+
+            double right;
+            if (expr.value instanceof Expr.Variable variable
+                    && variable.binding == Binding.LOCAL
+                    && frame.hasNumber(variable.index)) {
+                right = frame.getNumber(variable.index);
+            } else {
+                Object value = evaluate(expr.value);
+                if (!(value instanceof Double number)) {
+                    expr.state = Specialization.GENERIC;
+                    frame.set(slot, binary(expr.operator, left, value));
+                    return;
+                }
+                right = number;
+            }
+
+            frame.setNumber(slot, arithmetic(expr.operator, left, right));
+            if (expr.state == Specialization.UNINITIALIZED) expr.state = Specialization.DOUBLE;
+            return;
+        }
+
+        if (expr.state != Specialization.GENERIC) expr.state = Specialization.GENERIC;
+
+        Object left = lookUp(expr.binding, expr.index, expr.name);
+        Object right = evaluate(expr.value);
+        Object value;
+        if (left instanceof Double a && right instanceof Double b) {
+            value = arithmetic(expr.operator, a, b);
+        } else {
+            value = binary(expr.operator, left, right);
+        }
+
+        assign(expr.binding, expr.index, expr.name, value);
+    }
+
+    @Override
+    public Object visitIncrementExpr(Expr.Increment expr) {
+        increment(expr);
+        return lookUp(expr.binding, expr.index, expr.name);
+    }
+
+    /**
+     * Performs `x = x + c`, specializing like {@link #compound(Expr.Compound)}.
+     */
+    private void increment(Expr.Increment expr) {
+        int slot = expr.index;
+        if (expr.state != Specialization.GENERIC && expr.binding == Binding.LOCAL && frame.hasNumber(slot)) {
+            frame.setNumber(slot, frame.getNumber(slot) + expr.delta);
+            if (expr.state == Specialization.UNINITIALIZED) expr.state = Specialization.DOUBLE;
+            return;
+        }
+
+        if (expr.state != Specialization.GENERIC) expr.state = Specialization.GENERIC;
+
+        Object current = lookUp(expr.binding, expr.index, expr.name);
+        Object value;
+        if (current instanceof Double number) {
+            value = number + expr.delta;
+        } else {
+            // Same error (or concatenation) as the unfused `x = x + c`
+            double constant = expr.operator.type == TokenType.MINUS ? -expr.delta : expr.delta;
+            value = binary(expr.operator, current, constant);
+        }
+
+        assign(expr.binding, expr.index, expr.name, value);
+    }
+
+    private Object concatenate(Token operator, String left, String right) {
+        if ((long) left.length() + right.length() >= Rope.MIN_LENGTH) return rope(operator, left, right);
+
+        String result = left + right;
+        heap.charge(HeapAccount.stringBytes(result), operator);
+        return result;
+    }
+
+    private Object concatenate(Token operator, Object left, Object right) {
+        if ((long) textLength(left) + textLength(right) >= Rope.MIN_LENGTH) {
+            return rope(operator, text(left), text(right));
+        }
+
+        StringBuilder builder = scratch();
+        append(builder, left);
+        append(builder, right);
+        String result = builder.toString();
+        heap.charge(HeapAccount.stringBytes(result), operator);
+        return result;
+    }
+
+    private Rope rope(Token operator, CharSequence left, CharSequence right) {
+        if ((long) left.length() + right.length() > MAX_STRING_LENGTH) {
+            throw new LoxRuntimeError(operator, "String is too long.");
+        }
+        heap.charge(HeapAccount.ROPE_BYTES, operator);
+        return new Rope(left, right, heap, operator);
+    }
+
+    private static int textLength(Object value) {
+        return Rope.isString(value) ? ((CharSequence) value).length() : 0;
+    }
+
+    private CharSequence text(Object value) {
+        return Rope.isString(value) ? (CharSequence) value : stringify(value);
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        int argumentCount = expr.arguments.size();
+
+        Object callee;
+        if (expr.callee instanceof Expr.Get get) {
+            Object object = evaluate(get.object);
+
+            // Method calls go straight to the method without binding it to the receiver first
+            if (object instanceof LoxInstance instance && instance.getLoxClass() != null) {
+                LoxFunction method = findMethod(get, instance);
+                if (method != null && method.arity() == argumentCount) {
+                    Frame frame = method.newFrame(instance);
+                    evaluateArguments(expr.arguments, frame, method.firstParameterSlot());
+                    return invoke(method, frame, method, expr.paren);
+                }
+            }
+
+            if (object instanceof NativeObject receiver
+                    && receiver.arity(get.name.lexeme) == argumentCount) {
+                Object first = argumentCount > 0 ? evaluate(expr.arguments.get(0)) : null;
+                Object second = argumentCount > 1 ? evaluate(expr.arguments.get(1)) : null;
+                return receiver.call(this, get.name, first, second);
+            }
+
+            callee = getProperty(get, object);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+
+        // Calls to Lox functions and classes with the right number of arguments evaluate them
+        // straight into the slots of the new frame. Everything else, including the errors,
+        // goes through an argument list.
+        if (callee instanceof LoxFunction function && function.arity() == argumentCount) {
+            Frame frame = function.newFrame(function.getReceiver());
+            evaluateArguments(expr.arguments, frame, function.firstParameterSlot());
+            return invoke(function, frame, function, expr.paren);
+        }
+
+        if (callee instanceof HostFunction function
+                && function.arity() == argumentCount
+                && argumentCount <= HostFunction.MAX_DIRECT_ARITY) {
+            Object first = argumentCount > 0 ? evaluate(expr.arguments.get(0)) : null;
+            Object second = argumentCount > 1 ? evaluate(expr.arguments.get(1)) : null;
+            Object third = argumentCount > 2 ? evaluate(expr.arguments.get(2)) : null;
+            return function.invoke(expr.paren, first, second, third);
+        }
 
-        List<Object> arguments = expr.arguments.stream()
-                .map(this::evaluate)
-                .toList();
+        if (callee instanceof LoxClass klass
+                && klass.getInitializer() != null
+                && klass.arity() == argumentCount) {
+            LoxFunction initializer = klass.getInitializer();
+            LoxInstance instance = klass.instantiate(this);
+            Frame frame = initializer.newFrame(instance);
+            evaluateArguments(expr.arguments, frame, initializer.firstParameterSlot());
+            invoke(initializer, frame, klass, expr.paren);
+            return instance;
+        }
+
+        List<Object> arguments = new ArrayList<>(argumentCount);
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
 
         if (!(callee instanceof LoxCallable function)) {
             throw new LoxRuntimeError(
@@ -114,39 +615,147 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     arguments.size()
             ));
         }
-        return function.call(this, arguments);
+
+        return call(function, arguments, expr.paren);
+    }
+
+    /**
+     * Calls `function` with arguments of the right number, for calls that don't evaluate
+     * their arguments into a frame. Natives use it to call back into Lox.
+     */
+    Object call(LoxCallable function, List<Object> arguments, Token paren) {
+        if (machine != null && (function instanceof LoxFunction || function instanceof LoxClass)) {
+            return machine.call(function, arguments, paren);
+        }
+        return callOnJavaStack(function, arguments, paren);
+    }
+
+    /**
+     * {@link #call}, but always through {@link LoxCallable#call}, however deep that nests.
+     */
+    Object callOnJavaStack(LoxCallable function, List<Object> arguments, Token paren) {
+        callStack.push(function, paren);
+        Object result;
+        try {
+            result = function.call(this, arguments);
+        } catch (LoopControlException control) {
+            // A `break` or `continue` in a function applies to a loop of the caller
+            callStack.pop();
+            throw control;
+        }
+        callStack.pop();
+        return result;
+    }
+
+    private Object invoke(LoxFunction function, Frame frame, LoxCallable callee, Token paren) {
+        callStack.push(callee, paren);
+        Object result;
+        try {
+            result = function.invoke(this, frame);
+        } catch (LoopControlException control) {
+            // A `break` or `continue` in a function applies to a loop of the caller
+            callStack.pop();
+            throw control;
+        }
+        callStack.pop();
+        return result;
+    }
+
+    /**
+     * Finds the method a call site calls on `instance`, or null when there is none or a
+     * field of the same name shadows it. The method is cached for the class of the
+     * receiver and, while the class hierarchy shows nothing overrides it, for every class
+     * that inherits it.
+     */
+    LoxFunction findMethod(Expr.Get get, LoxInstance instance) {
+        LoxClass klass = instance.getLoxClass();
+        if (instance.hasField(get.name.lexeme, fieldSlot(get, klass))) return null;
+
+        if (klass == get.methodClass) return get.method;
+        if (get.methodHolder != null
+                && get.hierarchyVersion == hierarchy.getVersion()
+                && klass.inherits(get.methodHolder)) {
+            return get.method;
+        }
+
+        String name = get.name.lexeme;
+        get.methodClass = klass;
+        get.method = klass.findMethod(name);
+        get.methodHolder = get.method != null && !hierarchy.isOverridden(name) ? klass.findMethodHolder(name) : null;
+        get.hierarchyVersion = hierarchy.getVersion();
+        return get.method;
+    }
+
+    private void evaluateArguments(List<Expr> arguments, Frame frame, int first) {
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.set(first + i, evaluate(arguments.get(i)));
+        }
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
-        if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+        return getProperty(expr, evaluate(expr.object));
+    }
+
+    Object getProperty(Expr.Get expr, Object object) {
+        if (object instanceof LoxInstance instance) {
+            return instance.get(expr.name, fieldSlot(expr, instance.getLoxClass()));
+        }
+
+        if (object instanceof NativeObject receiver) {
+            int arity = receiver.arity(expr.name.lexeme);
+            if (arity >= 0) return new NativeMethod(receiver, expr.name, arity);
+            throw new LoxRuntimeError(expr.name, "Undefined property '" + expr.name.lexeme + "'.");
         }
 
         throw new LoxRuntimeError(expr.name, "Only instances have properties.");
     }
 
+    /**
+     * Caches the slot of the field for the last class seen here.
+     */
+    private int fieldSlot(Expr.Get expr, LoxClass klass) {
+        if (klass != expr.layoutClass) {
+            expr.layoutClass = klass;
+            expr.layoutSlot = klass == null ? -1 : klass.fieldSlot(expr.name.lexeme);
+        }
+        return expr.layoutSlot;
+    }
+
     @Override
     public Object visitSetExpr(Expr.Set expr) {
-        Object object = evaluate(expr.object);
+        LoxInstance instance = setTarget(expr, evaluate(expr.object));
+        return setField(expr, instance, evaluate(expr.value));
+    }
 
-        if (!(object instanceof LoxInstance)) {
+    /**
+     * Checks the object of a field assignment, before its value is evaluated.
+     */
+    LoxInstance setTarget(Expr.Set expr, Object object) {
+        if (!(object instanceof LoxInstance instance)) {
             throw new LoxRuntimeError(expr.name, "Only instances have fields.");
         }
 
-        Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        LoxClass klass = instance.getLoxClass();
+        if (klass != expr.layoutClass) {
+            expr.layoutClass = klass;
+            expr.layoutSlot = klass == null ? -1 : klass.fieldSlot(expr.name.lexeme);
+        }
+        return instance;
+    }
+
+    Object setField(Expr.Set expr, LoxInstance instance, Object value) {
+        long bytes = instance.set(expr.name, expr.layoutSlot, value);
+        if (bytes > 0) heap.charge(bytes, expr.name);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
+        LoxClass superclass = (LoxClass) lookUp(expr.binding, expr.index, expr.keyword);
 
-        // Find the object instance for `this` in the method to bind to
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+        // The object instance for `this` in the method to bind to
+        LoxInstance object = (LoxInstance) lookUp(expr.thisBinding, expr.thisIndex, expr.keyword);
 
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
@@ -160,7 +769,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUp(expr.binding, expr.index, expr.keyword);
     }
 
     @Override
@@ -188,12 +797,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        return unary(expr.operator, evaluate(expr.right));
+    }
 
-        return switch (expr.operator.type) {
+    Object unary(Token operator, Object right) {
+        return switch (operator.type) {
             case BANG -> !isTruthy(right);
             case MINUS -> {
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 yield -((double) right);
             }
 
@@ -204,21 +815,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUp(expr.binding, expr.index, expr.name);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
-        }
+    Object lookUp(Binding binding, int index, Token name) {
+        return switch (binding) {
+            case LOCAL -> frame.get(index);
+            case CELL -> frame.getCell(index).value;
+            case UPVALUE -> frame.getUpvalue(index).value;
+            case GLOBAL -> globals.get(index, name);
+        };
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        // Locals of blocks live in the frame of the enclosing function
+        executeStatements(stmt.statements);
         return null;
     }
 
@@ -232,17 +844,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        define(stmt.binding, stmt.index, stmt.name, null);
 
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            define(stmt.superBinding, stmt.superIndex, stmt.name, superclass);
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         Map<String, LoxFunction> staticMethods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment);
+            LoxFunction function = new LoxFunction(method, closeOver(method));
             if (method.isStaticMethod) {
                 staticMethods.put(method.name.lexeme, function);
             } else {
@@ -250,26 +861,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
-
-        if (superclass != null) {
-            environment = environment.getEnclosing();
-        }
-
-        environment.assign(stmt.name, klass);
+        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods, stmt.fields);
 
         // Assign static methods as fields instead of methods to avoid the binding to `this` issue
         for (LoxFunction method : staticMethods.values()) {
             klass.set(method.getDeclaration().name, method);
         }
 
-        environment.assign(stmt.name, klass);
+        // Assigned rather than defined so that methods see the class through the same cell
+        assign(stmt.binding, stmt.index, stmt.name, klass);
         return null;
     }
 
     @Override
     public Void visitLoopBodyStmt(Stmt.LoopBody stmt) {
-        executeLoopBody(stmt.statements, new Environment(environment));
+        executeStatements(stmt.statements);
         return null;
     }
 
@@ -280,14 +886,32 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        // The result of an update is only boxed when something uses it
+        if (stmt.expression instanceof Expr.Increment increment) {
+            increment(increment);
+        } else if (stmt.expression instanceof Expr.Compound compound) {
+            compound(compound);
+        } else {
+            evaluate(stmt.expression);
+        }
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function);
+        // Defined first so that a recursive function captures the cell it is stored in
+        define(stmt.binding, stmt.index, stmt.name, null);
+
+        LoxFunction function;
+        if (memoCacheSize > 0 && pureFunctions.contains(stmt)) {
+            MemoizedFunction memoized = new MemoizedFunction(stmt, closeOver(stmt), memoCacheSize);
+            memoizedFunctions.add(memoized);
+            function = memoized;
+        } else {
+            function = new LoxFunction(stmt, closeOver(stmt));
+        }
+        heap.charge(HeapAccount.closureBytes(stmt.upvalues.length), stmt.name);
+        assign(stmt.binding, stmt.index, stmt.name, function);
         return null;
     }
 
@@ -303,11 +927,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        if (value instanceof Double number) {
+            output.println(Numbers.append(scratch(), number));
+        } else {
+            output.println(stringify(value));
+        }
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
@@ -323,14 +954,59 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = stmt.initializer.accept(this);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        define(stmt.binding, stmt.index, stmt.name, value);
         return null;
     }
 
+    /**
+     * Binds a declared name. Captured locals get a fresh cell, so closures created in
+     * different iterations of a loop don't share the variable.
+     */
+    void define(Binding binding, int index, Token name, Object value) {
+        switch (binding) {
+            case LOCAL -> frame.set(index, value);
+            case CELL -> {
+                frame.set(index, new Cell(value));
+                heap.charge(HeapAccount.CELL_BYTES);
+            }
+            case GLOBAL -> globals.define(index, value);
+            // Unreachable, declarations are never upvalues
+            case UPVALUE -> frame.getUpvalue(index).value = value;
+        }
+    }
+
+    void assign(Binding binding, int index, Token name, Object value) {
+        switch (binding) {
+            case LOCAL -> frame.set(index, value);
+            case CELL -> frame.getCell(index).value = value;
+            case UPVALUE -> frame.getUpvalue(index).value = value;
+            case GLOBAL -> globals.assign(index, name, value);
+        }
+    }
+
+    /**
+     * Collects the cells `function` captures, from the current frame or from the upvalues
+     * of the running closure.
+     */
+    private Cell[] closeOver(Stmt.Function function) {
+        Upvalue[] upvalues = function.upvalues;
+        if (upvalues.length == 0) return Frame.NO_UPVALUES;
+
+        Cell[] cells = new Cell[upvalues.length];
+        for (int i = 0; i < upvalues.length; i++) {
+            Upvalue upvalue = upvalues[i];
+            cells[i] = upvalue.isLocal() ? frame.getCell(upvalue.index()) : frame.getUpvalue(upvalue.index());
+        }
+        return cells;
+    }
+
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         loop:
         while (isTruthy(evaluate(stmt.condition))) {
+            // Loop back-edge
+            safepoint.poll(stmt.keyword);
+
             try {
                 execute(stmt.body);
             } catch (LoopControlException e) {
@@ -349,46 +1025,168 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    /**
+     * Runs the body once for every element of a range, array or map (its keys), or for every
+     * value an iterator object returns. An object with an `iterator()` method is asked for
+     * its iterator, anything else is used as the iterator itself. An iterator's `next()`
+     * method returns the next value, or nil once it is exhausted.
+     */
     @Override
-    public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+        Object iterable = evaluate(stmt.iterable);
+
+        if (iterable instanceof LoxRange range) {
+            long count = range.count();
+            for (long i = 0; i < count; i++) {
+                bindLoopVariable(stmt.variable, range.get(i));
+                if (!runLoopBody(stmt)) break;
+            }
+        } else if (iterable instanceof LoxArray array) {
+            // Elements pushed by the body are visited too
+            for (int i = 0; i < array.size(); i++) {
+                if (array.isNumeric()) {
+                    bindLoopVariable(stmt.variable, array.getNumber(i));
+                } else {
+                    define(stmt.variable.binding, stmt.variable.index, stmt.variable.name, array.get(i));
+                }
+                if (!runLoopBody(stmt)) break;
+            }
+        } else if (iterable instanceof LoxMap map) {
+            int version = map.getVersion();
+            for (int slot = map.nextSlot(0); slot >= 0; slot = map.nextSlot(slot + 1)) {
+                define(stmt.variable.binding, stmt.variable.index, stmt.variable.name, map.keyAt(slot));
+                if (!runLoopBody(stmt)) break;
+                if (map.getVersion() != version) {
+                    throw new LoxRuntimeError(stmt.keyword, "Map keys changed during iteration.");
+                }
+            }
+        } else if (iterable instanceof NativeObject iterator && iterator.arity("next") == 0) {
+            // Such as the lines of a file
+            Token next = new Token(TokenType.IDENTIFIER, "next", null, stmt.keyword.line);
+            while (true) {
+                Object value = iterator.call(this, next, null, null);
+                if (value == null) break;
+                define(stmt.variable.binding, stmt.variable.index, stmt.variable.name, value);
+                if (!runLoopBody(stmt)) break;
+            }
+        } else if (iterable instanceof LoxInstance instance && instance.getLoxClass() != null) {
+            LoxInstance iterator = instance;
+            LoxFunction method = instance.getLoxClass().findMethod("iterator");
+            if (method != null) {
+                Object result = callIteratorMethod(method, instance, stmt.keyword);
+                if (!(result instanceof LoxInstance object) || object.getLoxClass() == null) {
+                    throw new LoxRuntimeError(stmt.keyword, "iterator() must return an instance.");
+                }
+                iterator = object;
+            }
+
+            LoxFunction next = iterator.getLoxClass().findMethod("next");
+            if (next == null) {
+                throw new LoxRuntimeError(stmt.keyword, "Iterator must have a 'next' method.");
+            }
+            while (true) {
+                Object value = callIteratorMethod(next, iterator, stmt.keyword);
+                if (value == null) break;
+                define(stmt.variable.binding, stmt.variable.index, stmt.variable.name, value);
+                if (!runLoopBody(stmt)) break;
+            }
+        } else {
+            throw new LoxRuntimeError(stmt.keyword, "Can only iterate over ranges, arrays, maps, files and iterators.");
+        }
+        return null;
+    }
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+    /**
+     * Every iteration gets a fresh variable, so closures created in the body capture the
+     * element of their own iteration. Locals keep numbers unboxed.
+     */
+    void bindLoopVariable(Stmt.Var variable, double value) {
+        if (variable.binding == Binding.LOCAL) {
+            frame.setNumber(variable.index, value);
         } else {
-            globals.assign(expr.name, value);
+            define(variable.binding, variable.index, variable.name, value);
+        }
+    }
+
+    /**
+     * @return False when the body breaks out of the loop
+     */
+    private boolean runLoopBody(Stmt.ForIn stmt) {
+        // Loop back-edge
+        safepoint.poll(stmt.keyword);
+
+        try {
+            execute(stmt.body);
+        } catch (LoopControlException e) {
+            return e.keyword.type != TokenType.BREAK;
+        }
+        return true;
+    }
+
+    private Object callIteratorMethod(LoxFunction method, LoxInstance receiver, Token keyword) {
+        if (method.arity() != 0) {
+            throw new LoxRuntimeError(keyword, "Iterator methods can't take arguments.");
         }
+        return invoke(method, method.newFrame(receiver), method, keyword);
+    }
+
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        Object value = evaluate(expr.value);
 
+        assign(expr.binding, expr.index, expr.name, value);
         return value;
     }
 
-    private boolean isTruthy(Object object) {
+    boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
     private boolean isEqual(Object left, Object right) {
-        if (left == null && right == null) return true;
+        // Covers nil, and strings from the same interned literal without comparing characters
+        if (left == right) return true;
         if (left == null) return false;
 
+        // Strings of different lengths are unequal without flattening a rope
+        if (left instanceof Rope || right instanceof Rope) {
+            return Rope.isString(left) && Rope.isString(right)
+                    && ((CharSequence) left).length() == ((CharSequence) right).length()
+                    && left.toString().equals(right.toString());
+        }
+
         return left.equals(right);
     }
 
     public String stringify(Object object) {
         if (object == null) return "nil";
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (object instanceof Double number) return Numbers.append(scratch(), number).toString();
 
         return object.toString();
     }
 
+    private void append(StringBuilder builder, Object object) {
+        if (object instanceof Double number) {
+            Numbers.append(builder, number);
+        } else {
+            builder.append(stringify(object));
+        }
+    }
+
+    /**
+     * The shared builder, emptied. One that grew past a few pages for a long concatenation
+     * is dropped rather than kept alive.
+     */
+    private StringBuilder scratch() {
+        if (scratch.capacity() > 8192) {
+            scratch = new StringBuilder();
+        } else {
+            scratch.setLength(0);
+        }
+        return scratch;
+    }
+
     private void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new LoxRuntimeError(operator, "Operand must be a number.");
@@ -406,37 +1204,50 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void execute(Stmt statement) {
+    void execute(Stmt statement) {
         statement.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    Frame getFrame() {
+        return frame;
     }
 
-    protected void executeBlock(List<Stmt> statements, Environment environment) {
-        Environment previous = this.environment;
-        try {
-            this.environment = environment;
+    void setFrame(Frame frame) {
+        this.frame = frame;
+    }
 
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
-        } finally {
-            this.environment = previous;
+    int globalSlot(String name) {
+        return globals.slot(name);
+    }
+
+    /**
+     * Makes sure the frame for locals of top-level blocks has room for `size` slots.
+     */
+    void reserveScriptSlots(int size) {
+        scriptFrameSize = Math.max(scriptFrameSize, size);
+    }
+
+    void memoize(Stmt.Function function) {
+        pureFunctions.add(function);
+    }
+
+    private void executeStatements(List<Stmt> statements) {
+        // Indexed rather than with an iterator, which would be allocated on every pass of a loop body
+        for (int i = 0; i < statements.size(); i++) {
+            execute(statements.get(i));
         }
     }
 
-    private void executeLoopBody(List<Stmt> statements, Environment environment) {
-        Environment previous = this.environment;
+    protected void executeBlock(List<Stmt> statements, Frame frame) {
+        Frame previous = this.frame;
+        long bytes = HeapAccount.frameBytes(frame.size());
+        heap.charge(bytes);
         try {
-            this.environment = environment;
-
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            this.frame = frame;
+            executeStatements(statements);
         } finally {
-            this.environment = previous;
+            this.frame = previous;
+            heap.release(bytes);
         }
     }
 
@@ -3,23 +3,73 @@ package com.sunkit.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.List;
-import java.util.Optional;
 
 public class Lox {
     private static final Interpreter interpreter = new Interpreter();
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
+    // Set by the interpreter thread when it wasn't ended by an uncaught exception
+    private static volatile boolean finished = false;
 
     /**
-     * Determine whether to output error messages to `stderr`
+     * Shared by every input of a REPL or stream session so that resolution state carries over
      */
-    private static boolean reportError = true;
+    private static final Resolver resolver = new Resolver(interpreter);
+
+    /**
+     * Shared by the REPL's inputs so that equal literals on different lines are one string
+     */
+    private static final StringTable strings = new StringTable();
+
+    // Reserved rather than committed, so a large default only costs address space
+    private static final long DEFAULT_STACK_SIZE = 512L * 1024 * 1024;
+
+    /**
+     * Every Lox call nests a dozen or so Java frames, so the interpreter runs on a thread
+     * whose stack is sized by `lox.stackSize` (in bytes) rather than on the main thread.
+     * Recursion that exhausts it is reported as a Lox "Stack overflow." error. With
+     * `lox.explicitStack` (in bytes) calls are kept on the heap instead, see
+     * {@link Interpreter#setExplicitStack(long)}.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        long stackSize = Long.getLong("lox.stackSize", DEFAULT_STACK_SIZE);
+        Thread thread = new Thread(null, () -> {
+            try {
+                start(args);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+            finished = true;
+        }, "lox", stackSize);
+        // Only reports the crash. The exit code is decided below, so it is still 1 when
+        // reporting fails too, e.g. with another OutOfMemoryError.
+        thread.setUncaughtExceptionHandler((t, error) -> {
+            interpreter.getOutput().flush();
+            interpreter.closeFiles();
+            error.printStackTrace();
+        });
+        thread.start();
+        thread.join();
+
+        if (!finished) System.exit(1);
+    }
+
+    private static void start(String[] args) throws IOException {
+        interpreter.setExecutionLimits(ExecutionLimits.fromSystemProperties());
+        interpreter.setOutput(Output.stdout(
+                Integer.getInteger("lox.outputBuffer", Output.DEFAULT_BUFFER_SIZE),
+                Duration.ofMillis(Long.getLong("lox.flushMillis", Output.DEFAULT_FLUSH_INTERVAL.toMillis()))));
+        interpreter.setMemoization(Integer.getInteger("lox.memoize", 0));
+        interpreter.setExplicitStack(Long.getLong("lox.explicitStack", 0));
+        interpreter.allowFileAccess();
 
-    public static void main(String[] args) throws IOException {
         if (args.length > 1) {
             System.out.println("Usage: jlox [script]");
             System.exit(64);
@@ -32,8 +82,11 @@ public class Lox {
 
     private static void runFile(String file) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(file));
-        List<Token> tokens = tokenize(new String(bytes, Charset.defaultCharset()));
+        List<Token> tokens = tokenize(new String(bytes, StandardCharsets.UTF_8));
         run(tokens);
+        interpreter.getOutput().flush();
+        closeFiles();
+        reportMemoization();
 
         // Indicate an error in the exit code
         if (hadError) System.exit(65);
@@ -41,25 +94,50 @@ public class Lox {
     }
 
     private static void handleStdin() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        StringBuilder source = new StringBuilder();
-        while (input.ready()) {
-            source.append((char) input.read());
+        // Only prompt when a user is typing, piped input is run as a stream
+        if (System.console() != null) {
+            runPrompt();
+            closeFiles();
+            return;
         }
 
-        if (!source.isEmpty()) {
-            List<Token> tokens = new Scanner(source.toString()).scanTokens();
-            run(tokens);
-        } else {
-            runPrompt();
+        runStream(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        interpreter.getOutput().flush();
+        closeFiles();
+
+        if (hadError) System.exit(65);
+        if (hadRuntimeError) System.exit(70);
+    }
+
+    /**
+     * Runs a program while it is being read. Input is read in chunks and each top-level
+     * declaration is resolved and executed as soon as it has been parsed. After a syntax
+     * error the rest of the input is only parsed, to report any further errors.
+     */
+    private static void runStream(Reader input) {
+        Parser parser = new Parser(new Scanner(input));
+
+        // The statements are one program, the limits apply to all of them together
+        interpreter.beginSession();
+        try {
+            while (parser.hasNext()) {
+                Stmt statement = parser.next();
+                if (hadError) continue;
+
+                execute(List.of(statement));
+                if (hadRuntimeError) return;
+            }
+        } finally {
+            interpreter.endSession();
         }
     }
 
     private static void runPrompt() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
+        InputStreamReader input = new InputStreamReader(System.in, StandardCharsets.UTF_8);
         BufferedReader reader = new BufferedReader(input);
 
         while (true) {
+            interpreter.getOutput().flush();
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
@@ -71,47 +149,21 @@ public class Lox {
     }
 
     /**
-     * Used to run source code input from REPL (interactive) mode. First evaluates the input as an expression then tries to run
-     * as statements when the expression evaluation fails. Parsing errors in the initial expression evaluation
-     * phase will not be reported to users.
+     * Used to run source code input from REPL (interactive) mode. A trailing expression
+     * without a semicolon is evaluated and its value printed.
      * @param src Source code input as a String
      */
-    // Implement direct expression evaluation in REPL mode (challenge 8.1)
     private static void runInteractive(String src) {
-        // Temporarily stop error reporting since we parse the user input
-        // as an expression unchecked, and it could be a statement or malformed
-        // input.
-        reportError = false;
+        List<Stmt> statements = new Parser(tokenize(src)).parseInteractive();
 
-        List<Token> tokens = tokenize(src);
-        Parser parser = new Parser(tokens);
-
-        Optional<Expr> expr = parser.tryParseExpression();
-
-        if (expr.isEmpty()) {
-            // Turn on error reporting for statement parsing to catch all the remaining
-            // errors. This will catch all errors since statement parsing is implemented
-            // as a superset of expression parsing.
-            reportError = true;
-
-            // Reset parsing error states to enter statement parsing in a clean slate
-            hadError = false;
-
-            // Pass the tokens to the run() method where statements are expected
-            run(tokens);
-            return;
-        }
+        // Stop if there was a syntax error
+        if (hadError) return;
 
-        try {
-            Object value = interpreter.evaluate(expr.get());
-            System.out.println(interpreter.stringify(value));
-        } catch (LoxRuntimeError error) {
-            System.err.println(error.getMessage());
-        }
+        execute(statements);
     }
 
     private static List<Token> tokenize(String src) {
-        return new Scanner(src).scanTokens();
+        return new Scanner(src, strings).scanTokens();
     }
 
 
@@ -122,12 +174,54 @@ public class Lox {
         // Stop if there was a syntax error
         if (hadError) return;
 
-        Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
 
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        if (interpreter.isMemoizing()) {
+            new PurityAnalyzer(interpreter).analyze(statements);
+        }
+
+        interpret(statements);
+    }
+
+    /**
+     * Resolves and runs statements that are part of a longer session (REPL or stream).
+     * Memoization is left out since it needs to see the whole program.
+     */
+    private static void execute(List<Stmt> statements) {
+        resolver.resolve(statements);
+
+        if (hadError) return;
+
+        interpret(statements);
+    }
+
+    /**
+     * Runs statements, reporting a run stopped by its limits like any other runtime error.
+     */
+    private static void interpret(List<Stmt> statements) {
+        try {
+            interpreter.interpret(statements);
+        } catch (ExecutionLimitError error) {
+            runtimeError(error);
+        }
+    }
+
+    /**
+     * Writes out and closes the files a script left open. A failed write is a runtime error.
+     */
+    private static void closeFiles() {
+        if (!interpreter.closeFiles()) {
+            System.err.println("Could not write all open files.");
+            hadRuntimeError = true;
+        }
+    }
+
+    private static void reportMemoization() {
+        for (MemoizedFunction function : interpreter.getMemoizedFunctions()) {
+            System.err.println("[memo] " + function.getStats());
+        }
     }
 
     static void error(int line, String message) {
@@ -143,15 +237,17 @@ public class Lox {
     }
 
     private static void report(int line, String where, String message) {
-        // Only report error when `reportError` flag is on
-        if (reportError) {
-            System.err.printf("[line %d] Error%s: %s%n", line, where, message);
-        }
+        interpreter.getOutput().flush();
+        System.err.printf("[line %d] Error%s: %s%n", line, where, message);
         hadError = true;
     }
 
     static void runtimeError(LoxRuntimeError error) {
-        System.err.printf("%s\n[line %d]%n", error.getMessage(), error.token.line);
+        interpreter.getOutput().flush();
+        System.err.println(error.getMessage());
+        for (String frame : error.getBacktrace()) {
+            System.err.println(frame);
+        }
         hadRuntimeError = true;
     }
 }
@@ -0,0 +1,211 @@
+package com.sunkit.lox;
+
+import java.util.Arrays;
+
+/**
+ * The built-in growable array created by `Array()`. While every element is a number they
+ * are stored unboxed in a `double[]`. Storing anything else widens the array to an
+ * `Object[]` for good.
+ */
+final class LoxArray implements NativeObject {
+    private static final double[] NO_NUMBERS = new double[0];
+    private static final int MIN_CAPACITY = 8;
+
+    private double[] numbers = NO_NUMBERS;
+    // Null while the array is numeric
+    private Object[] values = null;
+    private int size = 0;
+
+    LoxArray() {
+    }
+
+    /**
+     * A numeric array that takes over `numbers`.
+     */
+    LoxArray(double[] numbers) {
+        this.numbers = numbers;
+        this.size = numbers.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isNumeric() {
+        return values == null;
+    }
+
+    /**
+     * Reads an element of an array that {@link #isNumeric()}, without boxing it.
+     */
+    double getNumber(int index) {
+        return numbers[index];
+    }
+
+    /**
+     * The elements as numbers, for the bulk methods. A numeric array returns its backing
+     * array, which may be longer than {@link #size()}. A widened one that only holds numbers
+     * is copied.
+     */
+    double[] toNumbers(Token site) {
+        if (values == null) return numbers;
+
+        double[] copy = new double[size];
+        for (int i = 0; i < size; i++) {
+            if (!(values[i] instanceof Double number)) {
+                throw new LoxRuntimeError(site, "Expected an array of numbers.");
+            }
+            copy[i] = number;
+        }
+        return copy;
+    }
+
+    Object get(int index) {
+        return values == null ? (Object) numbers[index] : values[index];
+    }
+
+    @Override
+    public int arity(String method) {
+        return switch (method) {
+            case "length", "pop", "sum", "mean", "min", "max" -> 0;
+            case "get", "push", "dot", "scale", "add", "less", "greater" -> 1;
+            case "set" -> 2;
+            default -> -1;
+        };
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Token method, Object first, Object second) {
+        switch (method.lexeme) {
+            case "length":
+                return (double) size;
+            case "get":
+                return get(index(method, first));
+            case "set":
+                set(interpreter.heap, method, index(method, first), second);
+                return second;
+            case "push":
+                push(interpreter.heap, method, first);
+                return first;
+            case "pop":
+                if (size == 0) throw new LoxRuntimeError(method, "Can't pop from an empty array.");
+                Object last = get(--size);
+                if (values != null) values[size] = null;
+                return last;
+            case "sum":
+                return NumericKernels.sum(toNumbers(method), size);
+            case "mean":
+                return NumericKernels.sum(nonEmpty(method).toNumbers(method), size) / size;
+            case "min":
+                return NumericKernels.min(nonEmpty(method).toNumbers(method), size);
+            case "max":
+                return NumericKernels.max(nonEmpty(method).toNumbers(method), size);
+            case "dot":
+                return NumericKernels.dot(toNumbers(method), operand(method, first).toNumbers(method), size);
+            case "scale":
+                if (!(first instanceof Double factor)) {
+                    throw new LoxRuntimeError(method, "Scale factor must be a number.");
+                }
+                return newArray(interpreter.heap, method, NumericKernels.scale(toNumbers(method), size, factor));
+            case "add":
+                return newArray(interpreter.heap, method,
+                        NumericKernels.add(toNumbers(method), operand(method, first).toNumbers(method), size));
+            // Compare with another array element by element, or every element with a number
+            case "less":
+                return newArray(interpreter.heap, method, first instanceof Double bound
+                        ? NumericKernels.less(toNumbers(method), size, bound)
+                        : NumericKernels.less(toNumbers(method), operand(method, first).toNumbers(method), size));
+            case "greater":
+                return newArray(interpreter.heap, method, first instanceof Double bound
+                        ? NumericKernels.greater(toNumbers(method), size, bound)
+                        : NumericKernels.greater(toNumbers(method), operand(method, first).toNumbers(method), size));
+            default:
+                throw new LoxRuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+        }
+    }
+
+    private LoxArray nonEmpty(Token method) {
+        if (size == 0) throw new LoxRuntimeError(method, "Expected a non-empty array.");
+        return this;
+    }
+
+    /**
+     * The array argument of an element-wise method, which must be as long as this one.
+     */
+    private LoxArray operand(Token method, Object value) {
+        if (!(value instanceof LoxArray other)) {
+            throw new LoxRuntimeError(method, "Expected an array of numbers.");
+        }
+        if (other.size != size) throw new LoxRuntimeError(method, "Arrays must have the same length.");
+        return other;
+    }
+
+    private static LoxArray newArray(HeapAccount heap, Token method, double[] numbers) {
+        heap.charge(HeapAccount.arrayBytes(numbers.length, Double.BYTES), method);
+        return new LoxArray(numbers);
+    }
+
+    void push(HeapAccount heap, Token location, Object value) {
+        if (size == capacity()) grow(heap, location);
+        set(heap, location, size++, value);
+    }
+
+    private int index(Token method, Object index) {
+        if (!(index instanceof Double number) || number != Math.floor(number)) {
+            throw new LoxRuntimeError(method, "Array index must be an integer.");
+        }
+        if (number < 0 || number >= size) {
+            throw new LoxRuntimeError(method, "Array index out of bounds.");
+        }
+        return (int) (double) number;
+    }
+
+    private void set(HeapAccount heap, Token method, int index, Object value) {
+        if (values != null) {
+            values[index] = value;
+        } else if (value instanceof Double number) {
+            numbers[index] = number;
+        } else {
+            widen(heap, method);
+            values[index] = value;
+        }
+    }
+
+    private int capacity() {
+        return values == null ? numbers.length : values.length;
+    }
+
+    private void grow(HeapAccount heap, Token method) {
+        int capacity = Math.max(MIN_CAPACITY, capacity() * 2);
+        if (values == null) {
+            numbers = Arrays.copyOf(numbers, capacity);
+            heap.charge(HeapAccount.arrayBytes(capacity, Double.BYTES), method);
+        } else {
+            values = Arrays.copyOf(values, capacity);
+            heap.charge(HeapAccount.arrayBytes(capacity, HeapAccount.REFERENCE_BYTES), method);
+        }
+    }
+
+    private void widen(HeapAccount heap, Token method) {
+        values = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = NO_NUMBERS;
+        heap.charge(HeapAccount.arrayBytes(values.length, HeapAccount.REFERENCE_BYTES), method);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append(", ");
+            if (values == null) {
+                Numbers.append(builder, numbers[i]);
+            } else {
+                NativeObject.appendElement(builder, values[i], this);
+            }
+        }
+        return builder.append("]").toString();
+    }
+}
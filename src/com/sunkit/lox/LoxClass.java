@@ -1,5 +1,6 @@
 package com.sunkit.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -7,12 +8,31 @@ public class LoxClass extends LoxInstance implements LoxCallable {
     private final String name;
     private final LoxClass superclass;
     private final Map<String, LoxFunction> methods;
+    // Own and inherited methods. Methods can't change after the class is declared, so the
+    // superclass chain is only walked once
+    private final Map<String, LoxFunction> methodTable;
+    // Methods can't change after the class is declared, so `init` is only looked up once
+    private final LoxFunction initializer;
+    // Slots of the fields of instances, see LoxInstance
+    private final Map<String, Integer> layout;
 
-    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+    /**
+     * @param fields The fields the class's own initializer assigns, they are laid out after
+     *               the ones of the superclass
+     */
+    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods, List<String> fields) {
         super(null);
         this.name = name;
         this.superclass = superclass;
         this.methods = methods;
+        this.methodTable = superclass == null ? new HashMap<>() : new HashMap<>(superclass.methodTable);
+        methodTable.putAll(methods);
+        this.initializer = findMethod("init");
+
+        this.layout = superclass == null ? new HashMap<>() : new HashMap<>(superclass.layout);
+        for (String field : fields) {
+            layout.putIfAbsent(field, layout.size());
+        }
     }
 
     public String getName() {
@@ -20,12 +40,24 @@ public class LoxClass extends LoxInstance implements LoxCallable {
     }
 
     public LoxFunction findMethod(String name) {
-        LoxFunction method = methods.get(name);
-        if (method == null && superclass != null) {
-            method = superclass.findMethod(name);
+        return methodTable.get(name);
+    }
+
+    /**
+     * @return The class in the superclass chain that declares `name`, or null
+     */
+    LoxClass findMethodHolder(String name) {
+        for (LoxClass klass = this; klass != null; klass = klass.superclass) {
+            if (klass.methods.containsKey(name)) return klass;
         }
+        return null;
+    }
 
-        return method;
+    boolean inherits(LoxClass other) {
+        for (LoxClass klass = this; klass != null; klass = klass.superclass) {
+            if (klass == other) return true;
+        }
+        return false;
     }
 
     public LoxFunction findStaticMethod(Token name) {
@@ -43,21 +75,40 @@ public class LoxClass extends LoxInstance implements LoxCallable {
         return name;
     }
 
+    /**
+     * @return The slot of the field `name` in instances, or -1 if it isn't part of the layout
+     */
+    int fieldSlot(String name) {
+        Integer slot = layout.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int getLayoutSize() {
+        return layout.size();
+    }
+
+    LoxFunction getInitializer() {
+        return initializer;
+    }
+
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
+        LoxInstance instance = instantiate(interpreter);
         if (initializer != null) {
             initializer.bind(instance).call(interpreter, arguments);
         }
 
         return instance;
     }
+
+    LoxInstance instantiate(Interpreter interpreter) {
+        interpreter.heap.charge(HeapAccount.instanceBytes(layout.size()));
+        return new LoxInstance(this);
+    }
 }
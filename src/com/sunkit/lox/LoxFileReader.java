@@ -0,0 +1,191 @@
+package com.sunkit.lox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A UTF-8 text file opened by `openFile()` or `mapFile()`. Bytes are decoded a buffer at a
+ * time, so a file of any size is read in constant memory. `next()` returns the next line
+ * (without its line terminator) and `read(n)` up to `n` characters, both nil at the end of
+ * the file. A reader can be used in a for-in loop to iterate over its lines.
+ * <p>
+ * An opened file is read through a buffer. A mapped one is mapped a window at a time,
+ * which saves copying the bytes out of the page cache.
+ */
+final class LoxFileReader implements NativeObject, Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long MAP_WINDOW = 1 << 26;
+    // Longest UTF-8 sequence, what can be left undecoded at the end of a window
+    private static final int MAX_BYTES_PER_CHAR = 4;
+
+    private final FileChannel channel;
+    private final boolean mapped;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Both in read mode
+    private ByteBuffer bytes;
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    // File position after the mapped window
+    private long mappedUpTo = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    private LoxFileReader(FileChannel channel, boolean mapped) {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.bytes = mapped ? ByteBuffer.allocate(0) : ByteBuffer.allocate(BUFFER_SIZE).flip();
+        chars.flip();
+    }
+
+    static LoxFileReader open(Path path, boolean mapped) throws IOException {
+        return new LoxFileReader(FileChannel.open(path, StandardOpenOption.READ), mapped);
+    }
+
+    @Override
+    public int arity(String method) {
+        return switch (method) {
+            case "next", "close" -> 0;
+            case "read" -> 1;
+            default -> -1;
+        };
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Token method, Object first, Object second) {
+        if (closed) throw new LoxRuntimeError(method, "File is closed.");
+
+        try {
+            switch (method.lexeme) {
+                case "next":
+                    return charged(interpreter, method, nextLine());
+                case "read":
+                    if (!(first instanceof Double count) || count < 1 || count != Math.floor(count)) {
+                        throw new LoxRuntimeError(method, "Can only read a positive whole number of characters.");
+                    }
+                    return charged(interpreter, method, read((int) Math.min(count, Integer.MAX_VALUE - 8)));
+                case "close":
+                    close();
+                    interpreter.closed(this);
+                    return null;
+                default:
+                    throw new LoxRuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+            }
+        } catch (IOException error) {
+            throw new LoxRuntimeError(method, "Could not read file: " + error.getMessage());
+        }
+    }
+
+    private static String charged(Interpreter interpreter, Token method, String text) {
+        if (text != null) interpreter.heap.charge(HeapAccount.stringBytes(text), method);
+        return text;
+    }
+
+    private String nextLine() throws IOException {
+        StringBuilder line = null;
+        while (fill()) {
+            char[] array = chars.array();
+            int start = chars.position();
+            int limit = chars.limit();
+            int end = start;
+            while (end < limit && array[end] != '\n') end++;
+
+            if (line == null && end < limit) {
+                chars.position(end + 1);
+                return withoutCarriageReturn(new String(array, start, end - start));
+            }
+
+            if (line == null) line = new StringBuilder();
+            line.append(array, start, end - start);
+            chars.position(Math.min(end + 1, limit));
+            if (end < limit) return withoutCarriageReturn(line.toString());
+        }
+
+        // The last line needs no terminator
+        return line == null ? null : withoutCarriageReturn(line.toString());
+    }
+
+    private static String withoutCarriageReturn(String line) {
+        if (line.endsWith("\r")) return line.substring(0, line.length() - 1);
+        return line;
+    }
+
+    private String read(int count) throws IOException {
+        StringBuilder text = new StringBuilder(Math.min(count, BUFFER_SIZE));
+        while (text.length() < count && fill()) {
+            int length = Math.min(chars.remaining(), count - text.length());
+            text.append(chars.array(), chars.position(), length);
+            chars.position(chars.position() + length);
+        }
+        return text.length() == 0 ? null : text.toString();
+    }
+
+    /**
+     * Decodes more characters once the previous ones are used up.
+     * @return False at the end of the file
+     */
+    private boolean fill() throws IOException {
+        if (chars.hasRemaining()) return true;
+        if (finished) return false;
+
+        chars.clear();
+        while (chars.position() == 0) {
+            boolean more = readBytes();
+            decoder.decode(bytes, chars, !more);
+            if (!more) {
+                decoder.flush(chars);
+                finished = true;
+                break;
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    /**
+     * Makes more bytes available to the decoder.
+     * @return False once the whole file has been read
+     */
+    private boolean readBytes() throws IOException {
+        if (!mapped) {
+            bytes.compact();
+            int read = channel.read(bytes);
+            bytes.flip();
+            return read >= 0;
+        }
+
+        if (bytes.remaining() >= MAX_BYTES_PER_CHAR) return true;
+
+        long size = channel.size();
+        if (mappedUpTo >= size) return false;
+
+        // The next window starts with whatever the decoder left of the previous one
+        long start = mappedUpTo - bytes.remaining();
+        long length = Math.min(MAP_WINDOW, size - start);
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        mappedUpTo = start + length;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "<file>";
+    }
+}
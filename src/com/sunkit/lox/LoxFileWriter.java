@@ -0,0 +1,92 @@
+package com.sunkit.lox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * A UTF-8 text file created by `createFile()`. Writes go through an {@link Output} buffer
+ * that is only written to the file when it fills up and on `close()`.
+ */
+final class LoxFileWriter implements NativeObject, Closeable {
+    // Writes are not flushed on a timer, nobody is watching the file while it is written
+    private static final Duration NEVER = Duration.ofNanos(Long.MAX_VALUE);
+
+    private final FileChannel channel;
+    private final Output output;
+    private boolean closed = false;
+
+    private LoxFileWriter(FileChannel channel) {
+        this.channel = channel;
+        this.output = new Output(channel, StandardCharsets.UTF_8, Output.DEFAULT_BUFFER_SIZE, NEVER);
+    }
+
+    /**
+     * Creates the file, or empties it when it already exists.
+     */
+    static LoxFileWriter create(Path path) throws IOException {
+        return new LoxFileWriter(FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    @Override
+    public int arity(String method) {
+        return switch (method) {
+            case "close" -> 0;
+            case "write", "writeLine" -> 1;
+            default -> -1;
+        };
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Token method, Object first, Object second) {
+        if (closed) throw new LoxRuntimeError(method, "File is closed.");
+
+        switch (method.lexeme) {
+            case "write":
+                output.print(text(interpreter, first));
+                return null;
+            case "writeLine":
+                output.println(text(interpreter, first));
+                return null;
+            case "close":
+                interpreter.closed(this);
+                try {
+                    close();
+                } catch (IOException error) {
+                    throw new LoxRuntimeError(method, "Could not write file.");
+                }
+                return null;
+            default:
+                throw new LoxRuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+        }
+    }
+
+    private static CharSequence text(Interpreter interpreter, Object value) {
+        if (Rope.isString(value)) return (CharSequence) value;
+        return interpreter.stringify(value);
+    }
+
+    /**
+     * Writes out the buffer and closes the file.
+     *
+     * @throws IOException when any write to the file failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        boolean failed = output.checkError();
+        channel.close();
+        if (failed) throw new IOException("Could not write file.");
+    }
+
+    @Override
+    public String toString() {
+        return "<file>";
+    }
+}
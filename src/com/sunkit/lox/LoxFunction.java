@@ -4,24 +4,29 @@ import java.util.List;
 
 public class LoxFunction implements LoxCallable{
     private final Stmt.Function declaration;
-    private final Environment closure;
+    // Only the variables the function refers to, not the frames they were declared in
+    private final Cell[] upvalues;
+    private final LoxInstance receiver;
     private final boolean isInitializer;
 
     // Default value for `isInitializer` is `false`
-    LoxFunction(Stmt.Function declaration, Environment closure) {
-        this(declaration, closure, false);
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues) {
+        this(declaration, upvalues, null, false);
     }
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
-        this.closure = closure;
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, null, isInitializer);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Cell[] upvalues, LoxInstance receiver, boolean isInitializer) {
+        this.upvalues = upvalues;
         this.declaration = declaration;
+        this.receiver = receiver;
         this.isInitializer = isInitializer;
     }
 
     public LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, instance, isInitializer);
     }
 
     public Stmt.Function getDeclaration() {
@@ -35,23 +40,66 @@ public class LoxFunction implements LoxCallable{
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-
-        // Initialize arguments
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        Frame frame = newFrame(receiver);
+        int first = firstParameterSlot();
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.set(first + i, arguments.get(i));
         }
 
+        return invoke(interpreter, frame);
+    }
+
+    LoxInstance getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * Creates the frame for a call, with `receiver` in slot 0 if this is a method. Callers
+     * fill in the arguments from {@link #firstParameterSlot()} on and pass it to {@link #invoke}.
+     */
+    Frame newFrame(LoxInstance receiver) {
+        Frame frame = new Frame(declaration.frameSize, upvalues);
+        if (declaration.isMethod) frame.set(0, receiver);
+        return frame;
+    }
+
+    /**
+     * The resolver puts the parameters in the first slots after `this`.
+     */
+    int firstParameterSlot() {
+        return declaration.isMethod ? 1 : 0;
+    }
+
+    Object invoke(Interpreter interpreter, Frame frame) {
+        enter(interpreter, frame);
+
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            interpreter.executeBlock(declaration.body, frame);
         } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+            return result(returnValue.getValue());
+        }
 
-            return returnValue.getValue();
+        return result(null);
+    }
+
+    /**
+     * Prepares a filled in frame before the body runs on it: polls the safepoint and moves
+     * the parameters that closures capture into cells.
+     */
+    void enter(Interpreter interpreter, Frame frame) {
+        interpreter.safepoint.poll(declaration.name);
+
+        for (int slot : declaration.cellSlots) {
+            frame.set(slot, new Cell(frame.get(slot)));
         }
+    }
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+    /**
+     * @param returned The value of the `return` that ended the body, or null if it ran to its end
+     */
+    Object result(Object returned) {
+        if (isInitializer) return receiver;
+        return returned;
     }
 
     @Override
@@ -1,19 +1,51 @@
 package com.sunkit.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Fields assigned in the initializers of the class and its superclasses have a slot in
+ * the layout of the class (see {@link LoxClass#fieldSlot(String)}). Fields added anywhere
+ * else go to an overflow map created on demand.
+ */
 public class LoxInstance {
+    // Marks a slot of the layout whose field hasn't been assigned yet
+    private static final Object ABSENT = new Object();
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private final Object[] fields;
+    private Map<String, Object> overflow = null;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        if (klass == null || klass.getLayoutSize() == 0) {
+            this.fields = NO_FIELDS;
+        } else {
+            this.fields = new Object[klass.getLayoutSize()];
+            Arrays.fill(fields, ABSENT);
+        }
+    }
+
+    LoxClass getLoxClass() {
+        return klass;
     }
 
     public Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int slot = klass == null ? -1 : klass.fieldSlot(name.lexeme);
+        return get(name, slot);
+    }
+
+    /**
+     * @param slot The slot of the field in the layout of the class, or -1 if it has none
+     */
+    Object get(Token name, int slot) {
+        if (slot >= 0) {
+            Object value = fields[slot];
+            if (value != ABSENT) return value;
+        } else if (overflow != null && overflow.containsKey(name.lexeme)) {
+            return overflow.get(name.lexeme);
         }
 
         LoxFunction method = klass.findMethod(name.lexeme);
@@ -25,8 +57,35 @@ public class LoxInstance {
         throw new LoxRuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
-    public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    /**
+     * @return Whether the instance has a field `name`, which would shadow a method
+     */
+    boolean hasField(String name, int slot) {
+        if (slot >= 0) return fields[slot] != ABSENT;
+        return overflow != null && overflow.containsKey(name);
+    }
+
+    /**
+     * @return Approximate bytes allocated for a new field outside of the layout, see
+     * {@link HeapAccount#overflowFieldBytes(int)}. 0 when a slot is filled or an existing
+     * field overwritten.
+     */
+    public long set(Token name, Object value) {
+        int slot = klass == null ? -1 : klass.fieldSlot(name.lexeme);
+        return set(name, slot, value);
+    }
+
+    long set(Token name, int slot, Object value) {
+        if (slot >= 0) {
+            fields[slot] = value;
+            return 0;
+        }
+
+        if (overflow == null) overflow = new HashMap<>();
+        int size = overflow.size();
+        overflow.put(name.lexeme, value);
+        if (overflow.size() == size) return 0;
+        return HeapAccount.overflowFieldBytes(overflow.size());
     }
 
     @Override
@@ -0,0 +1,233 @@
+package com.sunkit.lox;
+
+/**
+ * The built-in hash map created by `Map()`. Keys compare like `==` does: numbers by value,
+ * strings by their characters, nil with nil and everything else by identity.
+ * <p>
+ * The table uses open addressing with linear probing over parallel arrays. Number keys
+ * are stored unboxed as their bits in {@link #numbers}, with {@link #NUMBER} in their key
+ * slot. Removed entries leave a {@link #DELETED} marker until the next resize.
+ */
+final class LoxMap implements NativeObject {
+    private static final Object NUMBER = new Object();
+    private static final Object DELETED = new Object();
+    // Stands for a nil key, since null marks an empty slot
+    private static final Object NIL = new Object();
+
+    private static final int MIN_CAPACITY = 8;
+    // Bytes per slot: a key reference, the number bits and a value reference
+    private static final int SLOT_BYTES = 2 * HeapAccount.REFERENCE_BYTES + Long.BYTES;
+
+    private Object[] keys = new Object[MIN_CAPACITY];
+    private long[] numbers = new long[MIN_CAPACITY];
+    private Object[] values = new Object[MIN_CAPACITY];
+    private int size = 0;
+    // Live entries plus deleted markers, bounded by the load factor
+    private int used = 0;
+    // Bumped when a key is added or removed, to detect changes during iteration
+    private int version = 0;
+
+    static long initialBytes() {
+        return HeapAccount.arrayBytes(MIN_CAPACITY, SLOT_BYTES);
+    }
+
+    @Override
+    public int arity(String method) {
+        return switch (method) {
+            case "size", "keys" -> 0;
+            case "get", "has", "remove" -> 1;
+            case "put" -> 2;
+            default -> -1;
+        };
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Token method, Object first, Object second) {
+        switch (method.lexeme) {
+            case "size":
+                return (double) size;
+            case "keys":
+                return keys(interpreter.heap, method);
+            case "get": {
+                int slot = find(first);
+                return slot < 0 ? null : values[slot];
+            }
+            case "has":
+                return find(first) >= 0;
+            case "put":
+                put(interpreter.heap, method, first, second);
+                return second;
+            case "remove": {
+                int slot = find(first);
+                if (slot < 0) return null;
+                Object value = values[slot];
+                keys[slot] = DELETED;
+                values[slot] = null;
+                size--;
+                version++;
+                return value;
+            }
+            default:
+                throw new LoxRuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+        }
+    }
+
+    /**
+     * @return The slot holding `key`, or -1 when it isn't in the map
+     */
+    private int find(Object key) {
+        int mask = keys.length - 1;
+        if (key instanceof Double number) {
+            long bits = Double.doubleToLongBits(number);
+            for (int slot = hash(bits) & mask; ; slot = (slot + 1) & mask) {
+                Object candidate = keys[slot];
+                if (candidate == null) return -1;
+                if (candidate == NUMBER && numbers[slot] == bits) return slot;
+            }
+        }
+
+        Object normalized = normalize(key);
+        int code = normalized.hashCode();
+        for (int slot = hash(code) & mask; ; slot = (slot + 1) & mask) {
+            Object candidate = keys[slot];
+            if (candidate == null) return -1;
+            if (candidate == normalized) return slot;
+            // Strings cache their hash code, comparing it first skips most content comparisons
+            if (candidate != NUMBER && candidate != DELETED
+                    && candidate.hashCode() == code && candidate.equals(normalized)) {
+                return slot;
+            }
+        }
+    }
+
+    void put(HeapAccount heap, Token location, Object key, Object value) {
+        int existing = find(key);
+        if (existing >= 0) {
+            values[existing] = value;
+            return;
+        }
+
+        if (2 * (used + 1) > keys.length) resize(heap, location);
+        insert(key, value);
+        version++;
+    }
+
+    /**
+     * Adds a key known to be absent, reusing the first deleted slot on its probe sequence.
+     */
+    private void insert(Object key, Object value) {
+        int mask = keys.length - 1;
+        boolean isNumber = key instanceof Double;
+        long bits = isNumber ? Double.doubleToLongBits((Double) key) : 0;
+        Object normalized = isNumber ? NUMBER : normalize(key);
+
+        int slot = hash(isNumber ? bits : normalized.hashCode()) & mask;
+        while (keys[slot] != null && keys[slot] != DELETED) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (keys[slot] == null) used++;
+        keys[slot] = normalized;
+        numbers[slot] = bits;
+        values[slot] = value;
+        size++;
+    }
+
+    /**
+     * Rehashes into a table sized for the live entries, which also drops the deleted markers.
+     */
+    private void resize(HeapAccount heap, Token location) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 4 * (size + 1)) capacity *= 2;
+
+        Object[] oldKeys = keys;
+        long[] oldNumbers = numbers;
+        Object[] oldValues = values;
+        keys = new Object[capacity];
+        numbers = new long[capacity];
+        values = new Object[capacity];
+        size = 0;
+        used = 0;
+        heap.charge(HeapAccount.arrayBytes(capacity, SLOT_BYTES), location);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object key = oldKeys[i];
+            if (key == null || key == DELETED) continue;
+            insert(denormalize(key, oldNumbers[i]), oldValues[i]);
+        }
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The first slot at or after `slot` that holds a key, or -1 when there is none.
+     * Together with {@link #keyAt(int)} this walks the keys without copying them.
+     */
+    int nextSlot(int slot) {
+        for (; slot < keys.length; slot++) {
+            Object key = keys[slot];
+            if (key != null && key != DELETED) return slot;
+        }
+        return -1;
+    }
+
+    Object keyAt(int slot) {
+        return denormalize(keys[slot], numbers[slot]);
+    }
+
+    private LoxArray keys(HeapAccount heap, Token location) {
+        LoxArray result = new LoxArray();
+        heap.charge(HeapAccount.arrayBytes(0, 0), location);
+        for (int i = 0; i < keys.length; i++) {
+            Object key = keys[i];
+            if (key == null || key == DELETED) continue;
+            result.push(heap, location, denormalize(key, numbers[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Maps a key to the object stored for it: ropes are flattened so they hash and compare
+     * like the equal strings, and nil gets a placeholder.
+     */
+    private static Object normalize(Object key) {
+        if (key == null) return NIL;
+        if (key instanceof Rope rope) return rope.toString();
+        return key;
+    }
+
+    private static Object denormalize(Object key, long bits) {
+        if (key == NUMBER) return Double.longBitsToDouble(bits);
+        if (key == NIL) return null;
+        return key;
+    }
+
+    /**
+     * Spreads every bit of the key over the low bits the table uses. Integral numbers only
+     * differ in their top bits, and object hash codes are often sequential.
+     */
+    private static int hash(long bits) {
+        bits ^= bits >>> 33;
+        bits *= 0xff51afd7ed558ccdL;
+        bits ^= bits >>> 33;
+        bits *= 0xc4ceb9fe1a85ec53L;
+        return (int) (bits ^ (bits >>> 33));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < keys.length; i++) {
+            Object key = keys[i];
+            if (key == null || key == DELETED) continue;
+
+            if (builder.length() > 1) builder.append(", ");
+            NativeObject.appendElement(builder, denormalize(key, numbers[i]), this);
+            builder.append(": ");
+            NativeObject.appendElement(builder, values[i], this);
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,33 @@
+package com.sunkit.lox;
+
+/**
+ * The numbers from `start` up to, but not including, `end` in increments of `step`
+ * (counting down for a negative step), created by `range()`. Nothing is materialized: a
+ * for-in loop over a range computes each number from a counter.
+ */
+record LoxRange(double start, double end, double step) {
+    /**
+     * @return How many numbers the range holds, Long.MAX_VALUE for an unbounded one
+     */
+    long count() {
+        double count = Math.ceil((end - start) / step);
+        if (!(count > 0)) return 0;
+        return (long) count;
+    }
+
+    /**
+     * The `index`th number, computed from the start so that fractional steps don't
+     * accumulate rounding errors.
+     */
+    double get(long index) {
+        return start + index * step;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("range(");
+        Numbers.append(builder, start).append(", ");
+        Numbers.append(builder, end).append(", ");
+        return Numbers.append(builder, step).append(")").toString();
+    }
+}
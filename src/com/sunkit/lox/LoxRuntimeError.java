@@ -1,9 +1,29 @@
 package com.sunkit.lox;
 
+import java.util.List;
+
+/**
+ * Doesn't capture a JVM stack trace, which would only show interpreter internals. The Lox
+ * backtrace is attached by the interpreter when the error reaches the top level.
+ */
 public class LoxRuntimeError extends RuntimeException{
     final Token token;
+    private List<String> backtrace = null;
+
     LoxRuntimeError(Token token, String message) {
-        super(message);
+        super(message, null, false, false);
         this.token = token;
     }
+
+    void setBacktrace(List<String> backtrace) {
+        this.backtrace = backtrace;
+    }
+
+    /**
+     * The Lox call stack at the point the error was raised, innermost frame first.
+     */
+    public List<String> getBacktrace() {
+        if (backtrace == null) return List.of(String.format("[line %d] in script", token.line));
+        return backtrace;
+    }
 }
@@ -0,0 +1,104 @@
+package com.sunkit.lox;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A function found pure by {@link PurityAnalyzer} whose results are cached by argument
+ * values. The cache is bounded and evicts the least recently used entry.
+ */
+public class MemoizedFunction extends LoxFunction {
+    // Stands in for a cached `nil` result so that `null` can mean "not cached"
+    private static final Object NIL = new Object();
+    // Returned by lookUp() for a result that isn't cached
+    static final Object MISSING = new Object();
+    // The key of calls whose result can't be cached, see key()
+    private static final Object UNCACHEABLE = new Object();
+
+    private final Map<Object, Object> cache;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    MemoizedFunction(Stmt.Function declaration, Cell[] upvalues, int capacity) {
+        super(declaration, upvalues);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                if (size() <= capacity) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    @Override
+    Object invoke(Interpreter interpreter, Frame frame) {
+        Object key = key(frame);
+
+        Object value = lookUp(key);
+        if (value != MISSING) return value;
+
+        value = super.invoke(interpreter, frame);
+        remember(key, value);
+        return value;
+    }
+
+    /**
+     * @return The cached result for `key`, or {@link #MISSING}
+     */
+    Object lookUp(Object key) {
+        if (key == UNCACHEABLE) return MISSING;
+
+        Object value = cache.get(key);
+        if (value == null) {
+            misses++;
+            return MISSING;
+        }
+
+        hits++;
+        return value == NIL ? null : value;
+    }
+
+    void remember(Object key, Object value) {
+        if (key == UNCACHEABLE) return;
+        cache.put(key, value == null ? NIL : value);
+    }
+
+    /**
+     * Memoized functions are never methods, so the arguments are in the first slots.
+     * Single argument calls are keyed on the value itself to skip hashing a list.
+     * <p>
+     * Only immutable values make keys. Arrays, maps, instances and other objects compare
+     * by identity and can change between calls, so calls with any of them aren't cached.
+     */
+    Object key(Frame frame) {
+        int arity = arity();
+        if (arity == 1) return keyOf(frame.get(0));
+
+        Object[] arguments = new Object[arity];
+        for (int i = 0; i < arity; i++) {
+            Object argument = keyOf(frame.get(i));
+            if (argument == UNCACHEABLE) return UNCACHEABLE;
+            arguments[i] = argument;
+        }
+        return Arrays.asList(arguments);
+    }
+
+    /**
+     * Ropes are flattened, a rope only equals other ropes.
+     */
+    private static Object keyOf(Object value) {
+        if (value == null || value instanceof Double || value instanceof Boolean || value instanceof String) {
+            return value;
+        }
+        if (value instanceof Rope rope) return rope.toString();
+        return UNCACHEABLE;
+    }
+
+    public String getStats() {
+        return String.format("%s: %d hits, %d misses, %d evictions",
+                getDeclaration().name.lexeme, hits, misses, evictions);
+    }
+}
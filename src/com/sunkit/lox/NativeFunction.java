@@ -0,0 +1,44 @@
+package com.sunkit.lox;
+
+import java.util.List;
+
+/**
+ * A global function implemented in Java that works on the interpreter itself (its heap,
+ * its call stack) or on Lox values directly. Plain Java methods are exposed through
+ * {@link HostFunction} instead. Errors are reported at the call site, which is
+ * the innermost entry of the call stack while the body runs.
+ */
+final class NativeFunction implements LoxCallable {
+    interface Body {
+        Object call(Interpreter interpreter, Token site, List<Object> arguments);
+    }
+
+    private final String name;
+    private final int arity;
+    private final Body body;
+
+    NativeFunction(String name, int arity, Body body) {
+        this.name = name;
+        this.arity = arity;
+        this.body = body;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(interpreter, interpreter.callStack.innermostSite(), arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,20 @@
+package com.sunkit.lox;
+
+import java.util.List;
+
+/**
+ * A method of a {@link NativeObject} read as a property rather than called right away.
+ */
+record NativeMethod(NativeObject receiver, Token name, int arity) implements LoxCallable {
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Object first = arguments.size() > 0 ? arguments.get(0) : null;
+        Object second = arguments.size() > 1 ? arguments.get(1) : null;
+        return receiver.call(interpreter, name, first, second);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
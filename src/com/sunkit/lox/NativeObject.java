@@ -0,0 +1,34 @@
+package com.sunkit.lox;
+
+/**
+ * A built-in value whose methods are implemented in Java, called with the usual
+ * `object.method(...)` syntax. Calls are dispatched on the method name without binding the
+ * method first, which is why native methods take at most two arguments.
+ */
+interface NativeObject {
+    /**
+     * @return The number of arguments `method` takes, or -1 when there is no such method
+     */
+    int arity(String method);
+
+    /**
+     * Calls `method` with its arguments, unused ones are `null`.
+     */
+    Object call(Interpreter interpreter, Token method, Object first, Object second);
+
+    /**
+     * Appends an element of a native collection the way `print` shows it. A collection that
+     * contains itself is shown as `...`.
+     */
+    static void appendElement(StringBuilder builder, Object element, NativeObject owner) {
+        if (element == null) {
+            builder.append("nil");
+        } else if (element instanceof Double number) {
+            Numbers.append(builder, number);
+        } else if (element == owner) {
+            builder.append("...");
+        } else {
+            builder.append(element);
+        }
+    }
+}
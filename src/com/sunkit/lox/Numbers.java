@@ -0,0 +1,29 @@
+package com.sunkit.lox;
+
+/**
+ * Formats Lox numbers the way {@link Interpreter#stringify(Object)} always has: the digits of
+ * {@link Double#toString(double)} without a trailing ".0". The digits are appended to a
+ * caller's builder, so no intermediate strings are created.
+ */
+final class Numbers {
+    // Double.toString switches to scientific notation from 10^7 on
+    private static final double PLAIN_LIMIT = 1e7;
+
+    private Numbers() {}
+
+    static StringBuilder append(StringBuilder builder, double number) {
+        // Integers print as such, -0 keeps its sign
+        if (number > -PLAIN_LIMIT && number < PLAIN_LIMIT && number == (long) number
+                && (number != 0 || 1 / number > 0)) {
+            return builder.append((long) number);
+        }
+
+        int start = builder.length();
+        builder.append(number);
+        int length = builder.length();
+        if (length - start > 2 && builder.charAt(length - 2) == '.' && builder.charAt(length - 1) == '0') {
+            builder.setLength(length - 2);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,154 @@
+package com.sunkit.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Destination of `print` statements. Lines are encoded straight into a byte buffer that is
+ * written to the channel in bulk, once it fills up or once the flush interval has passed
+ * since the last write: checked when a line is printed, and by the interpreter's safepoints
+ * through {@link #flushIfDue()} so output doesn't sit in the buffer while a script computes
+ * without printing. Anything else that must see the output first (a prompt, an error on
+ * stderr, exiting) calls {@link #flush()}.
+ * <p>
+ * Like {@link java.io.PrintStream}, write errors are not thrown, see {@link #checkError()}.
+ * An instance is not thread safe and belongs to a single {@link Interpreter}.
+ */
+public final class Output implements Flushable {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMillis(100);
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+    private final long flushInterval;
+    private long lastFlush = System.nanoTime();
+    private boolean hadError = false;
+
+    public Output(WritableByteChannel channel, Charset charset, int bufferSize, Duration flushInterval) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate(bufferSize);
+        this.chars = CharBuffer.allocate(Math.min(bufferSize, 8192));
+        this.flushInterval = flushInterval.toNanos();
+    }
+
+    public Output(OutputStream stream, Charset charset) {
+        this(Channels.newChannel(stream), charset, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Writes UTF-8 to the process's standard output, bypassing the locking and per-line
+     * flushing of {@link System#out}. Output still buffered there is flushed first. Scripts
+     * and input are read as UTF-8 too, so text passes through unchanged whatever the
+     * platform's default charset is.
+     */
+    public static Output stdout(int bufferSize, Duration flushInterval) {
+        System.out.flush();
+        return new Output(new FileOutputStream(FileDescriptor.out).getChannel(),
+                StandardCharsets.UTF_8, bufferSize, flushInterval);
+    }
+
+    public void println(CharSequence line) {
+        append(line);
+        append(LINE_SEPARATOR);
+
+        if (System.nanoTime() - lastFlush >= flushInterval) flush();
+    }
+
+    /**
+     * Flushes buffered output that has waited for the flush interval or longer.
+     */
+    public void flushIfDue() {
+        if (bytes.position() > 0 && System.nanoTime() - lastFlush >= flushInterval) flush();
+    }
+
+    /**
+     * Writes `text` without a line separator. Unlike a line, it doesn't check whether the
+     * output is due to be flushed.
+     */
+    public void print(CharSequence text) {
+        append(text);
+    }
+
+    private void append(CharSequence text) {
+        int length = text.length();
+        for (int start = 0; start < length; ) {
+            int end = Math.min(length, start + chars.remaining());
+            getChars(text, start, end, chars.array(), chars.arrayOffset() + chars.position());
+            chars.position(chars.position() + end - start);
+            start = end;
+            encode();
+        }
+    }
+
+    private static void getChars(CharSequence text, int start, int end, char[] destination, int offset) {
+        if (text instanceof String string) {
+            string.getChars(start, end, destination, offset);
+        } else if (text instanceof StringBuilder builder) {
+            builder.getChars(start, end, destination, offset);
+        } else {
+            for (int i = start; i < end; i++) destination[offset++] = text.charAt(i);
+        }
+    }
+
+    /**
+     * Moves the pending characters into the byte buffer, writing it out whenever it fills up.
+     * A surrogate pair split across chunks is kept back for the next call.
+     */
+    private void encode() {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, false);
+            if (!result.isOverflow()) break;
+            write();
+        }
+        chars.compact();
+    }
+
+    @Override
+    public void flush() {
+        write();
+        lastFlush = System.nanoTime();
+    }
+
+    private void write() {
+        bytes.flip();
+        try {
+            while (bytes.hasRemaining()) channel.write(bytes);
+        } catch (IOException error) {
+            hadError = true;
+        }
+        bytes.clear();
+    }
+
+    /**
+     * Flushes the output and tells whether any write has failed so far, for example because
+     * the reading end of a pipe was closed.
+     */
+    public boolean checkError() {
+        flush();
+        return hadError;
+    }
+}
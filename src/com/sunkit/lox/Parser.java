@@ -8,8 +8,28 @@ public class Parser {
     private final List<Token> tokens;
     private int current = 0;
 
+    /**
+     * Source of more tokens when parsing a stream, `null` when all tokens are given upfront
+     */
+    private final Scanner scanner;
+
+    /**
+     * Whether an expression without a semicolon at the end of the input is accepted
+     * and turned into a print statement (REPL mode)
+     */
+    private boolean echoTrailingExpression = false;
+
     public Parser(List<Token> tokens) {
         this.tokens = tokens;
+        this.scanner = null;
+    }
+
+    /**
+     * Parses tokens as the scanner produces them, see {@link #next()}.
+     */
+    public Parser(Scanner scanner) {
+        this.tokens = new ArrayList<>();
+        this.scanner = scanner;
     }
 
     public List<Stmt> parse() {
@@ -22,23 +42,31 @@ public class Parser {
     }
 
     /**
-     * Tries to parse an expression based on the input and returns it.
-     * Resets the parser state to the beginning regardless of the operation status.
+     * Parses a line of REPL input. A trailing expression without a semicolon becomes a
+     * print statement so that its value is echoed back.
      */
-    // TODO: Fix allowing invalid characters trailing a valid expression
-    public Optional<Expr> tryParseExpression() {
-        Optional<Expr> expr;
+    // Implement direct expression evaluation in REPL mode (challenge 8.1)
+    public List<Stmt> parseInteractive() {
+        echoTrailingExpression = true;
+        return parse();
+    }
 
-        try {
-            expr = Optional.of(expression());
-        } catch (ParseError error) {
-            expr = Optional.empty();
-        } finally {
-            // Reset the parser state to the beginning
+    public boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    /**
+     * Parses the next top-level declaration. When parsing a stream the tokens consumed so
+     * far are dropped, so memory use doesn't grow with the length of the input.
+     * @return The declaration, or `null` if it had a syntax error
+     */
+    public Stmt next() {
+        Stmt statement = declaration();
+        if (scanner != null) {
+            tokens.subList(0, current).clear();
             current = 0;
         }
-
-        return expr;
+        return statement;
     }
 
     private Stmt declaration() {
@@ -80,7 +108,10 @@ public class Parser {
 
     private Stmt varDeclaration() {
         Token name = consume(IDENTIFIER, "Expect variable name.");
+        return varDeclaration(name);
+    }
 
+    private Stmt varDeclaration(Token name) {
         Expr initializer = null;
         if (match(EQUAL)) {
             initializer = expression();
@@ -132,13 +163,17 @@ public class Parser {
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
         if (match(SEMICOLON)) {
             initializer = null;
         } else if (match(VAR)) {
-            initializer = varDeclaration();
+            Token name = consume(IDENTIFIER, "Expect variable name.");
+            // `in` is only special here, it can still name variables
+            if (check(IDENTIFIER) && peek().lexeme.equals("in")) return forInStatement(keyword, name);
+            initializer = varDeclaration(name);
         } else {
             initializer = expressionStatement();
         }
@@ -163,7 +198,7 @@ public class Parser {
         }
 
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(keyword, condition, body);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -172,6 +207,18 @@ public class Parser {
         return body;
     }
 
+    /**
+     * `for (var name in iterable) body`, see {@link Interpreter#visitForInStmt(Stmt.ForIn)}.
+     */
+    private Stmt forInStatement(Token keyword, Token name) {
+        advance();
+        Expr iterable = expression();
+        consume(RIGHT_PAREN, "Expect ')' after for-in iterable.");
+
+        Stmt body = loopBody();
+        return new Stmt.ForIn(keyword, new Stmt.Var(name, null), iterable, body);
+    }
+
     private Stmt ifStatement() {
         consume(LEFT_PAREN, "Expect '(' after 'if'.");
         Expr condition = expression();
@@ -201,17 +248,20 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition.");
 
         Stmt body = loopBody();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt expressionStatement() {
         Expr expr = expression();
+        if (echoTrailingExpression && isAtEnd()) return new Stmt.Print(expr);
+
         consume(SEMICOLON, "Expect ';' after expression.");
         return new Stmt.Expression(expr);
     }
@@ -250,7 +300,7 @@ public class Parser {
 
             if (expr instanceof Expr.Variable) {
                 Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
+                return assign(name, value);
             } else if (expr instanceof Expr.Get get) {
                 return new Expr.Set(get.object, get.name, value);
             }
@@ -264,6 +314,31 @@ public class Parser {
         return expr;
     }
 
+    /**
+     * Fuses `x = x op y` into a single node that reads and writes the variable once, with
+     * a further special case for adding or subtracting a number as in loop counters.
+     */
+    private Expr assign(Token name, Expr value) {
+        if (value instanceof Expr.Binary binary
+                && binary.left instanceof Expr.Variable left
+                && left.name.lexeme.equals(name.lexeme)) {
+            switch (binary.operator.type) {
+                case PLUS, MINUS -> {
+                    if (binary.right instanceof Expr.Literal literal && literal.value instanceof Double constant) {
+                        double delta = binary.operator.type == MINUS ? -constant : constant;
+                        return new Expr.Increment(name, binary.operator, delta);
+                    }
+                    return new Expr.Compound(name, binary.operator, binary.right);
+                }
+                case STAR, SLASH -> {
+                    return new Expr.Compound(name, binary.operator, binary.right);
+                }
+            }
+        }
+
+        return new Expr.Assign(name, value);
+    }
+
     private Expr or() {
         Expr expr = and();
 
@@ -306,12 +381,28 @@ public class Parser {
         while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
             Token operator = previous();
             Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+            expr = compare(expr, operator, right);
         }
 
         return expr;
     }
 
+    /**
+     * Fuses comparisons of a variable to another variable or to a number, like loop conditions.
+     */
+    private Expr compare(Expr left, Token operator, Expr right) {
+        if (left instanceof Expr.Variable variable) {
+            if (right instanceof Expr.Variable other) {
+                return new Expr.Compare(variable, operator, other);
+            }
+            if (right instanceof Expr.Literal literal && literal.value instanceof Double constant) {
+                return new Expr.CompareConstant(variable, operator, constant);
+            }
+        }
+
+        return new Expr.Binary(left, operator, right);
+    }
+
     private Expr term() {
         Expr expr = factor();
 
@@ -433,6 +524,7 @@ public class Parser {
     }
 
     private Token peek() {
+        if (current == tokens.size()) tokens.add(scanner.nextToken());
         return tokens.get(current);
     }
 
@@ -0,0 +1,335 @@
+package com.sunkit.lox;
+
+import java.util.*;
+
+/**
+ * Finds top-level functions that can be memoized: functions whose result depends only on
+ * their arguments and which have no observable side effects.
+ * <p>
+ * A function is pure when its body only touches its own locals (no global or captured
+ * variable writes, no field reads or writes, no `print`, no nested functions or classes)
+ * and every global it refers to is another pure function that is declared exactly once
+ * and never reassigned. Native functions are treated as impure. Purity is computed as a
+ * greatest fixpoint so mutually recursive functions can be pure together.
+ */
+public class PurityAnalyzer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Interpreter interpreter;
+    private final Stack<Set<String>> scopes = new Stack<>();
+
+    // Global definitions and assignments, to find the function names that stay bound
+    private final Map<String, Integer> globalBindings = new HashMap<>();
+    private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+
+    private final Map<Stmt.Function, Set<String>> dependencies = new HashMap<>();
+    private final Set<Stmt.Function> impure = new HashSet<>();
+
+    /**
+     * The top-level function whose body is being analyzed, `null` outside of one.
+     */
+    private Stmt.Function candidate = null;
+
+    PurityAnalyzer(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function function) {
+                globalFunctions.put(function.name.lexeme, function);
+                dependencies.put(function, new HashSet<>());
+            }
+        }
+
+        analyzeAll(statements);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Stmt.Function, Set<String>> entry : dependencies.entrySet()) {
+                if (impure.contains(entry.getKey())) continue;
+
+                for (String name : entry.getValue()) {
+                    if (!isPureGlobal(name)) {
+                        impure.add(entry.getKey());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (Stmt.Function function : dependencies.keySet()) {
+            if (!impure.contains(function)) interpreter.memoize(function);
+        }
+    }
+
+    private boolean isPureGlobal(String name) {
+        Stmt.Function function = globalFunctions.get(name);
+        return function != null && globalBindings.get(name) == 1 && !impure.contains(function);
+    }
+
+    private void analyze(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void analyze(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void analyzeAll(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            analyze(statement);
+        }
+    }
+
+    private void markImpure() {
+        if (candidate != null) impure.add(candidate);
+    }
+
+    private boolean isLocal(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).contains(name)) return true;
+        }
+        return false;
+    }
+
+    private void declare(Token name) {
+        if (scopes.isEmpty()) {
+            globalBindings.merge(name.lexeme, 1, Integer::sum);
+        } else {
+            scopes.peek().add(name.lexeme);
+        }
+    }
+
+    private void analyzeFunction(Stmt.Function function, Stmt.Function candidate) {
+        Stmt.Function enclosingCandidate = this.candidate;
+        this.candidate = candidate;
+
+        scopes.push(new HashSet<>());
+        for (Token param : function.params) {
+            scopes.peek().add(param.lexeme);
+        }
+        analyzeAll(function.body);
+        scopes.pop();
+
+        this.candidate = enclosingCandidate;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashSet<>());
+        analyzeAll(stmt.statements);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        markImpure();
+        declare(stmt.name);
+        if (stmt.superclass != null) analyze(stmt.superclass);
+
+        for (Stmt.Function method : stmt.methods) {
+            analyzeFunction(method, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLoopBodyStmt(Stmt.LoopBody stmt) {
+        scopes.push(new HashSet<>());
+        analyzeAll(stmt.statements);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitLoopControlStmt(Stmt.LoopControl stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // A nested function would be a closure shared by every call that hits the cache
+        markImpure();
+        boolean isTopLevel = scopes.isEmpty();
+        declare(stmt.name);
+        analyzeFunction(stmt, isTopLevel ? stmt : null);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        analyze(stmt.condition);
+        analyze(stmt.thenBranch);
+        if (stmt.elseBranch != null) analyze(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        markImpure();
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) analyze(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) analyze(stmt.initializer);
+        declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        analyze(stmt.condition);
+        analyze(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+        // Iterating calls iterator methods or reads mutable collections
+        markImpure();
+        analyze(stmt.iterable);
+
+        scopes.push(new HashSet<>());
+        declare(stmt.variable.name);
+        analyze(stmt.body);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        analyze(expr.value);
+        assignTo(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitCompoundExpr(Expr.Compound expr) {
+        analyze(expr.value);
+        assignTo(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        assignTo(expr.name);
+        return null;
+    }
+
+    private void assignTo(Token name) {
+        // Candidates are top-level functions, so every local in scope belongs to the candidate
+        if (!isLocal(name.lexeme)) {
+            globalBindings.merge(name.lexeme, 1, Integer::sum);
+            markImpure();
+        }
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (candidate != null && !isLocal(expr.name.lexeme)) {
+            dependencies.get(candidate).add(expr.name.lexeme);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // Only direct calls to global functions can be checked, a call through a local could be to anything
+        if (!(expr.callee instanceof Expr.Variable callee) || isLocal(callee.name.lexeme)) {
+            markImpure();
+        }
+
+        analyze(expr.callee);
+        for (Expr argument : expr.arguments) {
+            analyze(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        markImpure();
+        analyze(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCompareExpr(Expr.Compare expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        analyze(expr.left);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        analyze(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        markImpure();
+        analyze(expr.object);
+        analyze(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        markImpure();
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        markImpure();
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        analyze(expr.right);
+        return null;
+    }
+}
@@ -1,19 +1,90 @@
 package com.sunkit.lox;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Stack;
+import java.util.*;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+
+    /**
+     * A function being resolved, or the script for the top level. Every call gets one frame
+     * holding the locals of the function and of all blocks inside it. Variables of enclosing
+     * functions are reached through the upvalues of the closure instead of through the
+     * enclosing frames.
+     */
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final Stmt.Function declaration;
+        final List<Upvalue> upvalues = new ArrayList<>();
+        final Map<Local, Integer> upvalueIndices = new HashMap<>();
+        final List<Local> locals = new ArrayList<>();
+        final List<Reference> references = new ArrayList<>();
+        int nextSlot = 0;
+        int frameSize = 0;
+
+        FunctionScope(FunctionScope enclosing, Stmt.Function declaration) {
+            this.enclosing = enclosing;
+            this.declaration = declaration;
+        }
+    }
+
+    /**
+     * A lexical scope. Blocks only limit the visibility of their locals, the slots of
+     * sibling blocks overlap since they are never live at the same time.
+     */
+    private static class Scope {
+        final Scope parent;
+        final FunctionScope function;
+        final Map<String, Local> locals = new HashMap<>();
+        final int firstSlot;
+
+        Scope(Scope parent, FunctionScope function) {
+            this.parent = parent;
+            this.function = function;
+            this.firstSlot = function.nextSlot;
+        }
+    }
+
+    /**
+     * Receives the binding of a variable once it is known.
+     */
+    private interface Target {
+        void bind(Binding binding, int index);
+    }
+
+    private static class Local {
+        final FunctionScope function;
+        final int slot;
+        final Target declaration;
+        boolean defined = false;
+        boolean captured = false;
+
+        Local(FunctionScope function, int slot, Target declaration) {
+            this.function = function;
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    private record Reference(Target target, Local local) {
+    }
+
+    /**
+     * The innermost scope. Equal to {@link #script} at the top level, where variables are globals.
+     */
+    private Scope current = null;
+
+    /**
+     * Holds the locals of top-level blocks, one per resolved batch
+     */
+    private Scope script = null;
+    private FunctionScope function = null;
 
     private enum FunctionType {
         NONE,
         FUNCTION,
         INITIALIZER,
         METHOD,
+        STATIC_METHOD,
     }
 
     private FunctionType currentFunction = FunctionType.NONE;
@@ -26,11 +97,36 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private ClassType currentClass = ClassType.NONE;
 
+    /**
+     * Fields assigned through `this` in the initializer of the innermost class, in order
+     */
+    private Set<String> initializerFields = null;
+
     Resolver(Interpreter interpreter) {
         this.interpreter = interpreter;
     }
 
+    /**
+     * Resolves a batch of top-level statements. Whether a local lives in a cell is only
+     * known once everything that could capture it has been seen, so references are bound
+     * when the function declaring the local (or the batch) ends.
+     */
     void resolve(List<Stmt> statements) {
+        function = new FunctionScope(null, null);
+        script = new Scope(null, function);
+        current = script;
+
+        resolveAll(statements);
+
+        endFunction();
+        interpreter.reserveScriptSlots(function.frameSize);
+
+        function = null;
+        current = null;
+        script = null;
+    }
+
+    private void resolveAll(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
         }
@@ -45,56 +141,149 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<>());
+        current = new Scope(current, function);
     }
 
     private void endScope() {
-        scopes.pop();
+        // Later siblings reuse the slots of this scope
+        function.nextSlot = current.firstSlot;
+        current = current.parent;
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    private Local declare(Token name, Target declaration) {
+        if (current == script) {
+            declaration.bind(Binding.GLOBAL, interpreter.globalSlot(name.lexeme));
+            return null;
+        }
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        if (current.locals.containsKey(name.lexeme)) {
             Lox.error(name, "Already a variable with this name in this scope.");
         }
 
-        scope.put(name.lexeme, false);
+        return addLocal(name.lexeme, declaration);
     }
 
-    private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+    private void declare(Token name) {
+        declare(name, null);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+    private void define(Token name) {
+        if (current == script) return;
+        current.locals.get(name.lexeme).defined = true;
+    }
+
+    /**
+     * Declares and defines a variable the user can't name, like `this` or `super`.
+     */
+    private Local defineImplicit(String name, Target declaration) {
+        Local local = addLocal(name, declaration);
+        local.defined = true;
+        return local;
+    }
+
+    private Local addLocal(String name, Target declaration) {
+        Local local = new Local(function, function.nextSlot++, declaration);
+        function.frameSize = Math.max(function.frameSize, function.nextSlot);
+        function.locals.add(local);
+        current.locals.put(name, local);
+        return local;
+    }
+
+    private void resolveLocal(String name, Target target) {
+        for (Scope scope = current; scope != script; scope = scope.parent) {
+            Local local = scope.locals.get(name);
+            if (local != null) {
+                if (local.function == function) {
+                    function.references.add(new Reference(target, local));
+                } else {
+                    target.bind(Binding.UPVALUE, resolveUpvalue(function, local));
+                }
                 return;
             }
         }
+
+        // Not found, assume it is global
+        target.bind(Binding.GLOBAL, interpreter.globalSlot(name));
+    }
+
+    /**
+     * Adds `local` to the upvalues of `scope` and of every function between it and the one
+     * declaring the local, so that each closure copies the cell from the one enclosing it.
+     * @return The index of the upvalue in `scope`
+     */
+    private int resolveUpvalue(FunctionScope scope, Local local) {
+        Integer existing = scope.upvalueIndices.get(local);
+        if (existing != null) return existing;
+
+        Upvalue upvalue;
+        if (local.function == scope.enclosing) {
+            local.captured = true;
+            upvalue = new Upvalue(true, local.slot);
+        } else {
+            upvalue = new Upvalue(false, resolveUpvalue(scope.enclosing, local));
+        }
+
+        int index = scope.upvalues.size();
+        scope.upvalues.add(upvalue);
+        scope.upvalueIndices.put(local, index);
+        return index;
     }
 
-    private void resolveFunction(Stmt.Function function, FunctionType type) {
+    private void resolveFunction(Stmt.Function declaration, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
-
+        function = new FunctionScope(function, declaration);
         beginScope();
-        for (Token param : function.params) {
+
+        // The receiver goes in slot 0, before the parameters
+        declaration.isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+        if (declaration.isMethod) defineImplicit("this", null);
+
+        for (Token param : declaration.params) {
             declare(param);
             define(param);
         }
-        resolve(function.body);
+        resolveAll(declaration.body);
+
         endScope();
+        endFunction();
+        function = function.enclosing;
         currentFunction = enclosingFunction;
     }
 
+    /**
+     * Now that every closure that could capture the locals of the function has been seen,
+     * binds them and their references as plain slots or as cells.
+     */
+    private void endFunction() {
+        List<Integer> cellSlots = new ArrayList<>();
+        for (Local local : function.locals) {
+            Binding binding = local.captured ? Binding.CELL : Binding.LOCAL;
+            if (local.declaration != null) {
+                local.declaration.bind(binding, local.slot);
+            } else if (local.captured) {
+                // Implicit locals and parameters are put in their cells on entry
+                cellSlots.add(local.slot);
+            }
+        }
+
+        for (Reference reference : function.references) {
+            Local local = reference.local;
+            reference.target.bind(local.captured ? Binding.CELL : Binding.LOCAL, local.slot);
+        }
+
+        Stmt.Function declaration = function.declaration;
+        if (declaration != null) {
+            declaration.frameSize = function.frameSize;
+            declaration.upvalues = function.upvalues.toArray(new Upvalue[0]);
+            declaration.cellSlots = cellSlots.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
-        resolve(stmt.statements);
+        resolveAll(stmt.statements);
         endScope();
         return null;
     }
@@ -103,8 +292,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
+        Set<String> enclosingFields = initializerFields;
+        initializerFields = new LinkedHashSet<>();
 
-        declare(stmt.name);
+        declare(stmt.name, (binding, index) -> {
+            stmt.binding = binding;
+            stmt.index = index;
+        });
         define(stmt.name);
 
         if (stmt.superclass != null) {
@@ -115,30 +309,37 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.superclass);
         }
 
+        // The superclass is held by a hidden local that the methods capture
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            defineImplicit("super", (binding, index) -> {
+                stmt.superBinding = binding;
+                stmt.superIndex = index;
+            });
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
+        // Static methods are not bound to an instance, so they get no `this`
+        for (Stmt.Function method : stmt.methods) {
+            if (method.isStaticMethod) resolveFunction(method, FunctionType.STATIC_METHOD);
+        }
 
         for (Stmt.Function method : stmt.methods) {
+            if (method.isStaticMethod) continue;
+
             FunctionType declaration = method.name.lexeme.equals("init")
                     ? FunctionType.INITIALIZER
                     : FunctionType.METHOD;
 
-            // Check if the method is static (reuse FunctionType.FUNCTION since the semantics are the same)
-            declaration = method.isStaticMethod ? FunctionType.FUNCTION : declaration;
-
             resolveFunction(method, declaration);
         }
 
-
-        endScope();
-
         if (stmt.superclass != null) endScope();
 
+        interpreter.hierarchy.declare(stmt);
+
+        // The layout of instances, the fields of superclasses are added at runtime
+        stmt.fields = new ArrayList<>(initializerFields);
+        initializerFields = enclosingFields;
         currentClass = enclosingClass;
         return null;
     }
@@ -146,7 +347,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitLoopBodyStmt(Stmt.LoopBody stmt) {
         beginScope();
-        resolve(stmt.statements);
+        resolveAll(stmt.statements);
         endScope();
         return null;
     }
@@ -158,7 +359,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        declare(stmt.name, (binding, index) -> {
+            stmt.binding = binding;
+            stmt.index = index;
+        });
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -168,24 +372,40 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer.");
-        }
-
-        resolveLocal(expr, expr.name);
+        checkDefined(expr.name);
+        resolveLocal(expr.name.lexeme, (binding, index) -> {
+            expr.binding = binding;
+            expr.index = index;
+        });
         return null;
     }
 
+    /**
+     * Reports a read of a local that is declared but whose initializer hasn't finished.
+     */
+    private void checkDefined(Token name) {
+        Local local = current.locals.get(name.lexeme);
+        if (current != script && local != null && !local.defined) {
+            Lox.error(name, "Can't read local variable in its own initializer.");
+        }
+    }
+
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr.name.lexeme, (binding, index) -> {
+            expr.binding = binding;
+            expr.index = index;
+        });
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        declare(stmt.name, (binding, index) -> {
+            stmt.binding = binding;
+            stmt.index = index;
+        });
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -236,6 +456,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+        // The iterable can't see the loop variable
+        resolve(stmt.iterable);
+
+        beginScope();
+        resolve(stmt.variable);
+        resolve(stmt.body);
+        endScope();
+        return null;
+    }
+
     @Override
     public Void visitBinaryExpr(Expr.Binary expr) {
         resolve(expr.left);
@@ -243,6 +475,41 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitCompareExpr(Expr.Compare expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        resolve(expr.left);
+        return null;
+    }
+
+    @Override
+    public Void visitCompoundExpr(Expr.Compound expr) {
+        // Fused from `name = name <op> value`, which reads the variable
+        checkDefined(expr.name);
+        resolve(expr.value);
+        resolveLocal(expr.name.lexeme, (binding, index) -> {
+            expr.binding = binding;
+            expr.index = index;
+        });
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        checkDefined(expr.name);
+        resolveLocal(expr.name.lexeme, (binding, index) -> {
+            expr.binding = binding;
+            expr.index = index;
+        });
+        return null;
+    }
+
     @Override
     public Void visitCallExpr(Expr.Call expr) {
         resolve(expr.callee);
@@ -264,6 +531,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitSetExpr(Expr.Set expr) {
         resolve(expr.value);
         resolve(expr.object);
+
+        if (currentFunction == FunctionType.INITIALIZER && expr.object instanceof Expr.This) {
+            initializerFields.add(expr.name.lexeme);
+        }
         return null;
     }
 
@@ -273,15 +544,26 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
             Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+        } else if (currentFunction == FunctionType.STATIC_METHOD) {
+            Lox.error(expr.keyword, "Can't use 'super' in a static method.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword.lexeme, (binding, index) -> {
+            expr.binding = binding;
+            expr.index = index;
+        });
+        // The method is bound to the instance `this` refers to
+        resolveLocal("this", (binding, index) -> {
+            expr.thisBinding = binding;
+            expr.thisIndex = index;
+        });
         return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
-        if (currentClass == ClassType.NONE || currentFunction == FunctionType.FUNCTION) {
+        if (currentClass == ClassType.NONE || currentFunction == FunctionType.FUNCTION
+                || currentFunction == FunctionType.STATIC_METHOD) {
             String message = "Can't use 'this' outside of a class.";
             // Custom message specifically for using `this` in static methods
             if (currentClass != ClassType.NONE) {
@@ -291,7 +573,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return null;
         }
 
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword.lexeme, (binding, index) -> {
+            expr.binding = binding;
+            expr.index = index;
+        });
         return null;
     }
 
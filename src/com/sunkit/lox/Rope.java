@@ -0,0 +1,105 @@
+package com.sunkit.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A Lox string built by concatenation, kept as a tree of its two halves so that appending
+ * to a long string doesn't copy it. Leaves are {@link String}s. The characters are only
+ * copied into a flat string the first time they are needed (printing, comparing, hashing),
+ * after which the halves are dropped. That copy is charged to the run's {@link HeapAccount}
+ * when it is made rather than when the rope is built, since a rope that is only appended
+ * to is never copied.
+ * <p>
+ * Short concatenations are flat strings, see {@link #MIN_LENGTH}. Every other string value
+ * is a {@link String}.
+ */
+final class Rope implements CharSequence {
+    /**
+     * Results shorter than this are copied right away, a node wouldn't save anything.
+     */
+    static final int MIN_LENGTH = 128;
+
+    // String or Rope, both null once flattened
+    private CharSequence left;
+    private CharSequence right;
+    private final int length;
+    private String flat;
+    private final HeapAccount heap;
+    // The concatenation that built the rope, blamed when flattening it goes over the limit
+    private final Token site;
+
+    Rope(CharSequence left, CharSequence right, HeapAccount heap, Token site) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+        this.heap = heap;
+        this.site = site;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flatten();
+        return flat;
+    }
+
+    /**
+     * Copies the leaves from right to left with an explicit stack, since ropes built in a
+     * loop are as deep as the number of iterations. The copy is charged before it is
+     * allocated, so a rope too large for the allocation limit fails cleanly instead of
+     * running the JVM out of memory.
+     */
+    private void flatten() {
+        heap.charge(HeapAccount.flattenedBytes(length), site);
+        char[] chars = new char[length];
+        int end = length;
+
+        Deque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            CharSequence piece = pending.pop();
+            if (piece instanceof Rope rope && rope.flat == null) {
+                pending.push(rope.left);
+                pending.push(rope.right);
+                continue;
+            }
+
+            String text = piece.toString();
+            end -= text.length();
+            text.getChars(0, text.length(), chars, end);
+        }
+
+        flat = new String(chars);
+        left = null;
+        right = null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Rope rope && length == rope.length && toString().equals(rope.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
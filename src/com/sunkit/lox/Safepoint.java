@@ -0,0 +1,90 @@
+package com.sunkit.lox;
+
+/**
+ * Counter polled on loop back-edges and function entries. The fast path is a single
+ * decrement, the limits are only checked once every {@link #POLL_INTERVAL} ticks (or
+ * sooner when the remaining instruction budget is smaller than that). The check also
+ * flushes output that has been buffered for longer than its flush interval.
+ */
+final class Safepoint {
+    private static final int POLL_INTERVAL = 1 << 12;
+
+    private int countdown = POLL_INTERVAL;
+    private int interval = POLL_INTERVAL;
+
+    private final HeapAccount heap;
+    private Output output;
+    private ExecutionLimits limits = ExecutionLimits.NONE;
+    private long remainingBudget = Long.MAX_VALUE;
+    private long deadline;
+
+    Safepoint(HeapAccount heap, Output output) {
+        this.heap = heap;
+        this.output = output;
+    }
+
+    void setOutput(Output output) {
+        this.output = output;
+    }
+
+    /**
+     * Starts a new run under `limits`, resetting the budget, the deadline and the heap account.
+     */
+    void arm(ExecutionLimits limits) {
+        this.limits = limits;
+        heap.reset(limits.getAllocationLimit());
+        this.remainingBudget = limits.getInstructionBudget();
+        if (limits.getTimeout() != null) {
+            this.deadline = System.nanoTime() + limits.getTimeout().toNanos();
+        }
+        this.interval = (int) Math.min(POLL_INTERVAL, remainingBudget);
+        this.countdown = interval;
+    }
+
+    /**
+     * Lifts the limits after a run. The heap account keeps its total so it can still be read.
+     */
+    void disarm() {
+        this.limits = ExecutionLimits.NONE;
+        this.remainingBudget = Long.MAX_VALUE;
+        this.interval = POLL_INTERVAL;
+        this.countdown = POLL_INTERVAL;
+        heap.removeLimit();
+    }
+
+    void poll(Token location) {
+        if (--countdown > 0) return;
+        check(location);
+    }
+
+    private void check(Token location) {
+        output.flushIfDue();
+
+        remainingBudget -= interval;
+        if (remainingBudget < 0) {
+            throw new ExecutionLimitError(location, String.format(
+                    "Script exceeded its instruction budget of %d.", limits.getInstructionBudget()));
+        }
+
+        if (heap.isOverLimit()) throw heap.limitExceeded(location);
+
+        // Consume the interrupt the same way a thrown InterruptedException would
+        if (Thread.interrupted()) {
+            throw new ExecutionLimitError(location, "Script was interrupted.");
+        }
+
+        CancellationToken token = limits.getCancellationToken();
+        if (token != null && token.isCancelled()) {
+            throw new ExecutionLimitError(location, "Script was cancelled.");
+        }
+
+        if (limits.getTimeout() != null && System.nanoTime() - deadline >= 0) {
+            throw new ExecutionLimitError(location, String.format(
+                    "Script exceeded its time limit of %d ms.", limits.getTimeout().toMillis()));
+        }
+
+        // Charge at least one tick so an exhausted budget fails on the next poll
+        interval = (int) Math.max(1, Math.min(POLL_INTERVAL, remainingBudget));
+        countdown = interval;
+    }
+}
@@ -1,16 +1,31 @@
 package com.sunkit.lox;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Scanner {
-    private final String source;
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * Source characters. When reading from a {@link Reader} only the characters from the
+     * start of the current lexeme onwards are kept, and the buffer is refilled in chunks.
+     */
+    private char[] buffer;
+    private int length;
+    private Reader reader;
+
     private final List<Token> tokens = new ArrayList<>();
+    private Token scanned = null;
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    private final StringTable strings;
     private static final Map<String, TokenType> keywords;
 
     static {
@@ -37,22 +52,98 @@ public class Scanner {
     }
 
     Scanner(String source) {
-        this.source = source;
+        this(source, new StringTable());
+    }
+
+    /**
+     * Scans `source` with literals and names interned in `strings`, which can be shared
+     * with the scanners of the rest of a session.
+     */
+    Scanner(String source, StringTable strings) {
+        this.buffer = source.toCharArray();
+        this.length = buffer.length;
+        this.reader = null;
+        this.strings = strings;
+    }
+
+    /**
+     * Scans source read lazily from `reader` with {@link #nextToken()}, so tokens are
+     * available as soon as their characters have arrived.
+     */
+    Scanner(Reader reader) {
+        this.buffer = new char[CHUNK_SIZE];
+        this.length = 0;
+        this.reader = reader;
+        this.strings = new StringTable();
     }
 
     public List<Token> scanTokens() {
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != TokenType.EOF);
+
+        return tokens;
+    }
+
+    /**
+     * Scans the next token, reading more input if needed. Returns an EOF token once the
+     * source is exhausted.
+     */
+    public Token nextToken() {
         while (!isAtEnd()) {
             // We are at the beginning of the next lexeme
             start = current;
             scanToken();
+
+            if (scanned != null) {
+                Token token = scanned;
+                scanned = null;
+                return token;
+            }
         }
 
-        this.tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        return new Token(TokenType.EOF, "", null, line);
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !ensureAvailable(current);
+    }
+
+    /**
+     * Makes sure the character at `index` has been read, reading another chunk from the
+     * reader if it hasn't. Returns false if the source ends before `index`.
+     */
+    private boolean ensureAvailable(int index) {
+        while (index >= length) {
+            if (reader == null) return false;
+
+            // Drop the characters before the current lexeme to make room
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, length - start);
+                length -= start;
+                current -= start;
+                index -= start;
+                start = 0;
+            }
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            try {
+                int read = reader.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    reader = null;
+                    return false;
+                }
+                length += read;
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        return true;
     }
 
     private void scanToken() {
@@ -108,7 +199,7 @@ public class Scanner {
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return buffer[current++];
     }
 
     private void addToken(TokenType type) {
@@ -116,13 +207,20 @@ public class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        addToken(type, literal, lexeme(start, current));
+    }
+
+    private void addToken(TokenType type, Object literal, String text) {
+        scanned = new Token(type, text, literal, line);
+    }
+
+    private String lexeme(int from, int to) {
+        return new String(buffer, from, to - from);
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (buffer[current] != expected) return false;
 
         // Increment current only when expected character is matched
         current++;
@@ -131,12 +229,12 @@ public class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!ensureAvailable(current + 1)) return '\0';
+        return buffer[current + 1];
     }
 
     private void string() {
@@ -154,7 +252,7 @@ public class Scanner {
         advance();
 
         // Trim surrounding quotes
-        String value = source.substring(start + 1, current - 1);
+        String value = strings.intern(buffer, start + 1, current - 1);
 
         addToken(TokenType.STRING, value);
     }
@@ -170,7 +268,7 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        Double value = Double.parseDouble(source.substring(start, current));
+        Double value = Double.parseDouble(lexeme(start, current));
         addToken(TokenType.NUMBER, value);
     }
 
@@ -178,13 +276,13 @@ public class Scanner {
         while (isAlphaNumeric(peek())) advance();
 
         // Check for keywords (reserved words)
-        String text = source.substring(start, current);
+        String text = strings.intern(buffer, start, current);
         TokenType type = keywords.get(text);
 
         // Default to identifier if no matches
         if (type == null) type = TokenType.IDENTIFIER;
 
-        addToken(type);
+        addToken(type, null, text);
     }
 
     private boolean isDigit(char c) {
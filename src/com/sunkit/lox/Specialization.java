@@ -0,0 +1,14 @@
+package com.sunkit.lox;
+
+/**
+ * State of a node that speculates on the types it sees. A node starts out uninitialized,
+ * specializes on its first execution, and falls back to the generic path for good the
+ * first time the speculation fails, so a variable whose type keeps changing doesn't go
+ * back and forth between boxed and unboxed storage.
+ */
+public enum Specialization {
+    UNINITIALIZED,
+    // Reads and writes the variable as an unboxed double
+    DOUBLE,
+    GENERIC,
+}
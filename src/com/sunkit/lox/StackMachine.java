@@ -0,0 +1,910 @@
+package com.sunkit.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs scripts with the Lox call stack on the heap instead of the Java stack, see
+ * {@link Interpreter#setExplicitStack(long)}. Nodes that call Lox code are evaluated a step
+ * at a time from an explicit stack of tasks, each remembering the step it is at, and leave
+ * their values on an operand stack. A Lox call pushes an {@link Activation} and the
+ * function body instead of nesting Java frames, so recursion is only bounded by the memory
+ * the stack may use. `return`, `break` and `continue` unwind the task stack rather than
+ * throwing.
+ * <p>
+ * Everything that can neither call Lox code nor unwind out of itself is handed to the
+ * {@link Interpreter}'s visitor, which nests only as deeply as the source does. Which nodes
+ * those are is worked out the first time they run, see {@link #suspends(Expr)}.
+ */
+final class StackMachine {
+    // Values of the `suspends` field of nodes
+    private static final byte UNKNOWN = 0;
+    private static final byte INLINE = 1;
+    private static final byte SUSPENDS = 2;
+
+    // Approximate size of an activation and of the tasks of a call, on top of its frame
+    private static final long CALL_BYTES = 96;
+
+    private final Interpreter interpreter;
+    private final long maxBytes;
+    private long bytes = 0;
+
+    // A task is a node, a list of statements or an Activation. Its step, the height of the
+    // operand stack when it was pushed and any state of its own are kept alongside
+    private Object[] tasks = new Object[64];
+    private int[] steps = new int[64];
+    private int[] heights = new int[64];
+    private Object[] states = new Object[64];
+    private int depth = 0;
+    // Bottom of the innermost run, `return`, `break` and `continue` don't unwind past it
+    private int base = 0;
+
+    private Object[] operands = new Object[64];
+    private int top = 0;
+
+    /**
+     * A Lox call in progress. When its body finishes or returns, the caller's frame is
+     * restored and the result pushed for the caller.
+     */
+    private static final class Activation {
+        final LoxFunction function;
+        final Frame caller;
+        final long bytes;
+        // Pushed instead of the result when a class was called, null otherwise
+        final LoxInstance instance;
+        final Object memoKey;
+
+        Activation(LoxFunction function, Frame caller, long bytes, LoxInstance instance, Object memoKey) {
+            this.function = function;
+            this.caller = caller;
+            this.bytes = bytes;
+            this.instance = instance;
+            this.memoKey = memoKey;
+        }
+    }
+
+    /**
+     * What a call expression calls, decided once the callee has been evaluated.
+     */
+    private static final class PendingCall {
+        // A method found on an instance, called without binding it first
+        LoxFunction method;
+        LoxInstance receiver;
+        NativeObject nativeReceiver;
+        // Anything else
+        Object callee;
+        int evaluated = 0;
+    }
+
+    /**
+     * The position of a for-in loop in what it iterates over.
+     */
+    private static final class Iteration {
+        LoxRange range;
+        LoxArray array;
+        LoxMap map;
+        int version;
+        NativeObject nativeIterator;
+        Token next;
+        LoxInstance iterator;
+        LoxFunction nextMethod;
+        long index = 0;
+        long count;
+    }
+
+    StackMachine(Interpreter interpreter, long maxBytes) {
+        this.interpreter = interpreter;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Runs top-level statements in the interpreter's current frame.
+     */
+    void execute(List<Stmt> statements) {
+        int base = depth;
+        push(statements);
+        run(base, top);
+    }
+
+    /**
+     * Calls a Lox function or class for a native, returning its result.
+     */
+    Object call(LoxCallable function, List<Object> arguments, Token paren) {
+        int base = depth;
+        int bottom = top;
+        callValue(function, arguments.toArray(), paren);
+        run(base, bottom);
+        return popOperand();
+    }
+
+    /**
+     * Runs tasks until those above `base` are finished. When an error escapes, the frames of
+     * the calls it unwinds are given back, but the calls are left on the {@link CallStack}
+     * for the backtrace, like the recursive evaluation does.
+     */
+    private void run(int base, int bottom) {
+        int outerBase = this.base;
+        this.base = base;
+        try {
+            while (depth > base) {
+                try {
+                    step(depth - 1);
+                } catch (LoopControlException control) {
+                    // From Lox code a native called. Rethrown if this run has no loop for it either
+                    unwindLoop(control.keyword);
+                }
+            }
+        } catch (RuntimeException | Error error) {
+            for (int i = depth - 1; i >= base; i--) {
+                if (tasks[i] instanceof Activation activation) leave(activation);
+            }
+            popTasks(base);
+            truncateOperands(bottom);
+            throw error;
+        } finally {
+            this.base = outerBase;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void step(int i) {
+        Object task = tasks[i];
+        if (task instanceof List<?> statements) {
+            statements((List<Stmt>) statements, i);
+        } else if (task instanceof Activation activation) {
+            // The body ran to its end without returning
+            finishCall(i, activation, null);
+        } else if (task instanceof Expr.Call expr) {
+            call(expr, i);
+        } else if (task instanceof Expr expr) {
+            expression(expr, i);
+        } else {
+            statement((Stmt) task, i);
+        }
+    }
+
+    private void statements(List<Stmt> statements, int i) {
+        int index = steps[i];
+        while (index < statements.size()) {
+            Stmt statement = statements.get(index++);
+            if (suspends(statement)) {
+                steps[i] = index;
+                push(statement);
+                return;
+            }
+            interpreter.execute(statement);
+        }
+        finish();
+    }
+
+    private void statement(Stmt stmt, int i) {
+        if (stmt instanceof Stmt.Block block) {
+            replace(i, block.statements);
+        } else if (stmt instanceof Stmt.LoopBody body) {
+            replace(i, body.statements);
+        } else if (stmt instanceof Stmt.Expression expression) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(expression.expression)) return;
+            }
+            popOperand();
+            finish();
+        } else if (stmt instanceof Stmt.Print print) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(print.expression)) return;
+            }
+            interpreter.print(popOperand());
+            finish();
+        } else if (stmt instanceof Stmt.Var var) {
+            if (var.initializer == null) {
+                interpreter.define(var.binding, var.index, var.name, null);
+                finish();
+                return;
+            }
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(var.initializer)) return;
+            }
+            interpreter.define(var.binding, var.index, var.name, popOperand());
+            finish();
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            ifStatement(ifStmt, i);
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            whileStatement(whileStmt, i);
+        } else if (stmt instanceof Stmt.ForIn forIn) {
+            forIn(forIn, i);
+        } else if (stmt instanceof Stmt.Return returnStmt) {
+            if (returnStmt.value == null) {
+                unwindReturn(null);
+                return;
+            }
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(returnStmt.value)) return;
+            }
+            unwindReturn(popOperand());
+        } else if (stmt instanceof Stmt.LoopControl control) {
+            unwindLoop(control.keyword);
+        } else {
+            // Declarations never suspend, but running them here is just as good
+            interpreter.execute(stmt);
+            finish();
+        }
+    }
+
+    private void ifStatement(Stmt.If stmt, int i) {
+        if (steps[i] == 0) {
+            steps[i] = 1;
+            if (!evaluate(stmt.condition)) return;
+        }
+        if (steps[i] == 1) {
+            steps[i] = 2;
+            Stmt branch = interpreter.isTruthy(popOperand()) ? stmt.thenBranch : stmt.elseBranch;
+            if (branch != null && !execute(branch)) return;
+        }
+        finish();
+    }
+
+    private void whileStatement(Stmt.While stmt, int i) {
+        if (steps[i] == 0) {
+            steps[i] = 1;
+            if (!evaluate(stmt.condition)) return;
+        }
+
+        if (!interpreter.isTruthy(popOperand())) {
+            finish();
+            return;
+        }
+
+        // Loop back-edge
+        interpreter.safepoint.poll(stmt.keyword);
+
+        // The condition is evaluated again once the body is done, here or when it is popped
+        steps[i] = 0;
+        execute(stmt.body);
+    }
+
+    /**
+     * Like {@link Interpreter#visitForInStmt(Stmt.ForIn)}, but with the `iterator()` and
+     * `next()` methods of iterator instances called on this stack.
+     */
+    private void forIn(Stmt.ForIn stmt, int i) {
+        if (steps[i] == 0) {
+            steps[i] = 1;
+            if (!evaluate(stmt.iterable)) return;
+        }
+
+        Iteration iteration = (Iteration) states[i];
+        switch (steps[i]) {
+            case 1: {
+                iteration = new Iteration();
+                states[i] = iteration;
+                steps[i] = 3;
+
+                Object iterable = popOperand();
+                if (iterable instanceof LoxRange range) {
+                    iteration.range = range;
+                    iteration.count = range.count();
+                } else if (iterable instanceof LoxArray array) {
+                    iteration.array = array;
+                } else if (iterable instanceof LoxMap map) {
+                    iteration.map = map;
+                    iteration.version = map.getVersion();
+                } else if (iterable instanceof NativeObject iterator && iterator.arity("next") == 0) {
+                    iteration.nativeIterator = iterator;
+                    iteration.next = new Token(TokenType.IDENTIFIER, "next", null, stmt.keyword.line);
+                } else if (iterable instanceof LoxInstance instance && instance.getLoxClass() != null) {
+                    LoxFunction method = instance.getLoxClass().findMethod("iterator");
+                    if (method != null) {
+                        steps[i] = 2;
+                        callIteratorMethod(method, instance, stmt.keyword);
+                        return;
+                    }
+                    iterateWith(iteration, instance, stmt);
+                } else {
+                    throw new LoxRuntimeError(stmt.keyword, "Can only iterate over ranges, arrays, maps, files and iterators.");
+                }
+                return;
+            }
+            case 2: {
+                Object result = popOperand();
+                if (!(result instanceof LoxInstance object) || object.getLoxClass() == null) {
+                    throw new LoxRuntimeError(stmt.keyword, "iterator() must return an instance.");
+                }
+                iterateWith(iteration, object, stmt);
+                steps[i] = 3;
+                return;
+            }
+            case 3:
+                nextElement(stmt, iteration, i);
+                return;
+            case 4: {
+                Object value = popOperand();
+                if (value == null) {
+                    finish();
+                    return;
+                }
+                define(stmt.variable, value);
+                runLoopBody(stmt, i);
+                return;
+            }
+            default:
+                // The body finished, or continued
+                if (iteration.map != null && iteration.map.getVersion() != iteration.version) {
+                    throw new LoxRuntimeError(stmt.keyword, "Map keys changed during iteration.");
+                }
+                steps[i] = 3;
+        }
+    }
+
+    private void iterateWith(Iteration iteration, LoxInstance iterator, Stmt.ForIn stmt) {
+        iteration.iterator = iterator;
+        iteration.nextMethod = iterator.getLoxClass().findMethod("next");
+        if (iteration.nextMethod == null) {
+            throw new LoxRuntimeError(stmt.keyword, "Iterator must have a 'next' method.");
+        }
+    }
+
+    /**
+     * Binds the loop variable to the next element and starts the body, or ends the loop.
+     */
+    private void nextElement(Stmt.ForIn stmt, Iteration iteration, int i) {
+        if (iteration.range != null) {
+            if (iteration.index >= iteration.count) {
+                finish();
+                return;
+            }
+            interpreter.bindLoopVariable(stmt.variable, iteration.range.get(iteration.index++));
+        } else if (iteration.array != null) {
+            LoxArray array = iteration.array;
+            // Elements pushed by the body are visited too
+            if (iteration.index >= array.size()) {
+                finish();
+                return;
+            }
+            int index = (int) iteration.index++;
+            if (array.isNumeric()) {
+                interpreter.bindLoopVariable(stmt.variable, array.getNumber(index));
+            } else {
+                define(stmt.variable, array.get(index));
+            }
+        } else if (iteration.map != null) {
+            int slot = iteration.map.nextSlot((int) iteration.index);
+            if (slot < 0) {
+                finish();
+                return;
+            }
+            iteration.index = slot + 1;
+            define(stmt.variable, iteration.map.keyAt(slot));
+        } else if (iteration.nativeIterator != null) {
+            Object value = iteration.nativeIterator.call(interpreter, iteration.next, null, null);
+            if (value == null) {
+                finish();
+                return;
+            }
+            define(stmt.variable, value);
+        } else {
+            steps[i] = 4;
+            callIteratorMethod(iteration.nextMethod, iteration.iterator, stmt.keyword);
+            return;
+        }
+        runLoopBody(stmt, i);
+    }
+
+    private void runLoopBody(Stmt.ForIn stmt, int i) {
+        // Loop back-edge
+        interpreter.safepoint.poll(stmt.keyword);
+
+        steps[i] = 5;
+        execute(stmt.body);
+    }
+
+    private void callIteratorMethod(LoxFunction method, LoxInstance receiver, Token keyword) {
+        if (method.arity() != 0) {
+            throw new LoxRuntimeError(keyword, "Iterator methods can't take arguments.");
+        }
+        enter(method, method.newFrame(receiver), method, keyword, null);
+    }
+
+    private void define(Stmt.Var variable, Object value) {
+        interpreter.define(variable.binding, variable.index, variable.name, value);
+    }
+
+    private void expression(Expr expr, int i) {
+        if (expr instanceof Expr.Binary binary) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(binary.left)) return;
+            }
+            if (steps[i] == 1) {
+                steps[i] = 2;
+                if (!evaluate(binary.right)) return;
+            }
+            Object right = popOperand();
+            Object left = popOperand();
+            complete(interpreter.binary(binary.operator, left, right));
+        } else if (expr instanceof Expr.Logical logical) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(logical.left)) return;
+            }
+            if (steps[i] == 1) {
+                Object left = popOperand();
+                boolean shortCircuits = logical.operator.type == TokenType.OR
+                        ? interpreter.isTruthy(left)
+                        : !interpreter.isTruthy(left);
+                if (shortCircuits) {
+                    complete(left);
+                    return;
+                }
+                steps[i] = 2;
+                if (!evaluate(logical.right)) return;
+            }
+            complete(popOperand());
+        } else if (expr instanceof Expr.Grouping grouping) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(grouping.expression)) return;
+            }
+            complete(popOperand());
+        } else if (expr instanceof Expr.Unary unary) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(unary.right)) return;
+            }
+            complete(interpreter.unary(unary.operator, popOperand()));
+        } else if (expr instanceof Expr.Assign assign) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(assign.value)) return;
+            }
+            Object value = popOperand();
+            interpreter.assign(assign.binding, assign.index, assign.name, value);
+            complete(value);
+        } else if (expr instanceof Expr.Compound compound) {
+            compound(compound, i);
+        } else if (expr instanceof Expr.Get get) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(get.object)) return;
+            }
+            complete(interpreter.getProperty(get, popOperand()));
+        } else if (expr instanceof Expr.Set set) {
+            if (steps[i] == 0) {
+                steps[i] = 1;
+                if (!evaluate(set.object)) return;
+            }
+            if (steps[i] == 1) {
+                steps[i] = 2;
+                states[i] = interpreter.setTarget(set, popOperand());
+                if (!evaluate(set.value)) return;
+            }
+            complete(interpreter.setField(set, (LoxInstance) states[i], popOperand()));
+        } else {
+            // Only nodes with calls in them are pushed
+            complete(interpreter.evaluate(expr));
+        }
+    }
+
+    /**
+     * `x = x op y` where `y` calls a function, always on the generic path. The value of `x`
+     * is read before `y` is evaluated, like the recursive evaluation does.
+     */
+    private void compound(Expr.Compound expr, int i) {
+        if (steps[i] == 0) {
+            steps[i] = 1;
+            pushOperand(interpreter.lookUp(expr.binding, expr.index, expr.name));
+            if (!evaluate(expr.value)) return;
+        }
+
+        Object right = popOperand();
+        Object left = popOperand();
+        Object value;
+        if (left instanceof Double a && right instanceof Double b) {
+            value = interpreter.arithmetic(expr.operator, a, b);
+        } else {
+            value = interpreter.binary(expr.operator, left, right);
+        }
+        interpreter.assign(expr.binding, expr.index, expr.name, value);
+        complete(value);
+    }
+
+    /**
+     * Mirrors {@link Interpreter#visitCallExpr(Expr.Call)}: evaluates the callee, decides
+     * what to call, evaluates the arguments onto the operand stack and then calls.
+     */
+    private void call(Expr.Call expr, int i) {
+        int argumentCount = expr.arguments.size();
+        PendingCall pending = (PendingCall) states[i];
+        switch (steps[i]) {
+            case 0:
+                if (expr.callee instanceof Expr.Get get) {
+                    steps[i] = 1;
+                    if (!evaluate(get.object)) return;
+                } else {
+                    steps[i] = 2;
+                    if (!evaluate(expr.callee)) return;
+                }
+                return;
+            case 1: {
+                Expr.Get get = (Expr.Get) expr.callee;
+                Object object = popOperand();
+                pending = new PendingCall();
+                states[i] = pending;
+                steps[i] = 3;
+
+                // Method calls go straight to the method without binding it to the receiver first
+                if (object instanceof LoxInstance instance && instance.getLoxClass() != null) {
+                    LoxFunction method = interpreter.findMethod(get, instance);
+                    if (method != null && method.arity() == argumentCount) {
+                        pending.method = method;
+                        pending.receiver = instance;
+                        break;
+                    }
+                }
+
+                if (object instanceof NativeObject receiver
+                        && receiver.arity(get.name.lexeme) == argumentCount) {
+                    pending.nativeReceiver = receiver;
+                } else {
+                    pending.callee = interpreter.getProperty(get, object);
+                }
+                break;
+            }
+            case 2:
+                pending = new PendingCall();
+                pending.callee = popOperand();
+                states[i] = pending;
+                steps[i] = 3;
+                break;
+        }
+
+        while (pending.evaluated < argumentCount) {
+            if (!evaluate(expr.arguments.get(pending.evaluated++))) return;
+        }
+
+        Object[] arguments = popOperands(argumentCount);
+        // The call takes the place of the expression, its result is pushed when it is done
+        finish();
+
+        if (pending.method != null) {
+            LoxFunction method = pending.method;
+            enter(method, withArguments(method.newFrame(pending.receiver), method, arguments), method, expr.paren, null);
+        } else if (pending.nativeReceiver != null) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object first = argumentCount > 0 ? arguments[0] : null;
+            Object second = argumentCount > 1 ? arguments[1] : null;
+            pushOperand(pending.nativeReceiver.call(interpreter, get.name, first, second));
+        } else {
+            callValue(pending.callee, arguments, expr.paren);
+        }
+    }
+
+    /**
+     * Calls `callee` with evaluated arguments. Lox functions and classes are entered on this
+     * stack, anything else is called right away and its result pushed.
+     */
+    private void callValue(Object callee, Object[] arguments, Token paren) {
+        int argumentCount = arguments.length;
+        if (callee instanceof LoxFunction function && function.arity() == argumentCount) {
+            Frame frame = withArguments(function.newFrame(function.getReceiver()), function, arguments);
+            enter(function, frame, function, paren, null);
+            return;
+        }
+
+        if (callee instanceof HostFunction function
+                && function.arity() == argumentCount
+                && argumentCount <= HostFunction.MAX_DIRECT_ARITY) {
+            Object first = argumentCount > 0 ? arguments[0] : null;
+            Object second = argumentCount > 1 ? arguments[1] : null;
+            Object third = argumentCount > 2 ? arguments[2] : null;
+            pushOperand(function.invoke(paren, first, second, third));
+            return;
+        }
+
+        if (callee instanceof LoxClass klass
+                && klass.getInitializer() != null
+                && klass.arity() == argumentCount) {
+            LoxFunction initializer = klass.getInitializer();
+            LoxInstance instance = klass.instantiate(interpreter);
+            Frame frame = withArguments(initializer.newFrame(instance), initializer, arguments);
+            enter(initializer, frame, klass, paren, instance);
+            return;
+        }
+
+        if (!(callee instanceof LoxCallable function)) {
+            throw new LoxRuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        if (argumentCount != function.arity()) {
+            throw new LoxRuntimeError(paren, String.format(
+                    "Expected %d arguments but got %d.",
+                    function.arity(),
+                    argumentCount
+            ));
+        }
+
+        // Natives, and classes without an initializer
+        pushOperand(interpreter.callOnJavaStack(function, Arrays.asList(arguments), paren));
+    }
+
+    private static Frame withArguments(Frame frame, LoxFunction function, Object[] arguments) {
+        int first = function.firstParameterSlot();
+        for (int i = 0; i < arguments.length; i++) {
+            frame.set(first + i, arguments[i]);
+        }
+        return frame;
+    }
+
+    /**
+     * Starts a call of `function` on a filled in frame. A memoized result is pushed right
+     * away, otherwise the body is pushed above an {@link Activation} for the call.
+     *
+     * @param callee What the backtrace shows as called, the class for an initializer
+     * @param instance The instance to push as the result, when a class is called
+     */
+    private void enter(LoxFunction function, Frame frame, LoxCallable callee, Token paren, LoxInstance instance) {
+        long size = CALL_BYTES + HeapAccount.frameBytes(frame.size());
+        if (bytes + size > maxBytes) {
+            throw new LoxRuntimeError(paren, "Stack overflow.");
+        }
+        interpreter.callStack.push(callee, paren);
+
+        Object memoKey = null;
+        if (function instanceof MemoizedFunction memoized) {
+            memoKey = memoized.key(frame);
+            Object value = memoized.lookUp(memoKey);
+            if (value != MemoizedFunction.MISSING) {
+                interpreter.callStack.pop();
+                pushOperand(value);
+                return;
+            }
+        }
+
+        function.enter(interpreter, frame);
+        interpreter.heap.charge(HeapAccount.frameBytes(frame.size()));
+        bytes += size;
+
+        push(new Activation(function, interpreter.getFrame(), size, instance, memoKey));
+        interpreter.setFrame(frame);
+        push(function.getDeclaration().body);
+    }
+
+    /**
+     * Gives back what a call took, without a result.
+     */
+    private void leave(Activation activation) {
+        interpreter.setFrame(activation.caller);
+        interpreter.heap.release(activation.bytes - CALL_BYTES);
+        bytes -= activation.bytes;
+    }
+
+    /**
+     * Ends the call of the activation at `i`, dropping the tasks above it.
+     */
+    private void finishCall(int i, Activation activation, Object returned) {
+        popTasks(i + 1);
+        truncateOperands(heights[i]);
+        finish();
+
+        leave(activation);
+        interpreter.callStack.pop();
+
+        Object result = activation.instance != null ? activation.instance : activation.function.result(returned);
+        if (activation.function instanceof MemoizedFunction memoized) {
+            memoized.remember(activation.memoKey, result);
+        }
+        pushOperand(result);
+    }
+
+    private void unwindReturn(Object value) {
+        for (int i = depth - 1; i >= base; i--) {
+            if (tasks[i] instanceof Activation activation) {
+                finishCall(i, activation, value);
+                return;
+            }
+        }
+        // The resolver only allows `return` in functions
+        throw new IllegalStateException("'return' outside of a function.");
+    }
+
+    /**
+     * Unwinds to the innermost loop for a `break` or `continue`. As in the recursive
+     * evaluation, that can be a loop of a caller, and the calls in between are abandoned.
+     * Without a loop on this run's part of the stack, the statement is rethrown for whatever
+     * called into it.
+     */
+    private void unwindLoop(Token keyword) {
+        for (int i = depth - 1; i >= base; i--) {
+            Object task = tasks[i];
+            if (task instanceof Activation activation) {
+                leave(activation);
+                interpreter.callStack.pop();
+                continue;
+            }
+            if (!(task instanceof Stmt.While) && !(task instanceof Stmt.ForIn)) continue;
+
+            popTasks(i + 1);
+            truncateOperands(heights[i]);
+            if (keyword.type == TokenType.BREAK) {
+                finish();
+            } else if (task instanceof Stmt.While) {
+                steps[i] = 0;
+            } else {
+                steps[i] = 5;
+            }
+            return;
+        }
+
+        popTasks(base);
+        throw new LoopControlException(keyword);
+    }
+
+    /**
+     * Pushes the value of `expr`, right away if it can't suspend.
+     *
+     * @return False if a task was pushed instead, which leaves the value when it finishes
+     */
+    private boolean evaluate(Expr expr) {
+        if (suspends(expr)) {
+            push(expr);
+            return false;
+        }
+        pushOperand(interpreter.evaluate(expr));
+        return true;
+    }
+
+    /**
+     * Runs `stmt`, right away if it can't suspend.
+     *
+     * @return False if a task was pushed instead
+     */
+    private boolean execute(Stmt stmt) {
+        if (suspends(stmt)) {
+            push(stmt);
+            return false;
+        }
+        interpreter.execute(stmt);
+        return true;
+    }
+
+    /**
+     * Whether evaluating `expr` can call Lox code, in which case it has to be evaluated on
+     * this stack. Calls of natives are included, they may call back into Lox.
+     */
+    static boolean suspends(Expr expr) {
+        if (expr.suspends == UNKNOWN) expr.suspends = calls(expr) ? SUSPENDS : INLINE;
+        return expr.suspends == SUSPENDS;
+    }
+
+    private static boolean calls(Expr expr) {
+        if (expr instanceof Expr.Call) return true;
+        if (expr instanceof Expr.Binary binary) return suspends(binary.left) || suspends(binary.right);
+        if (expr instanceof Expr.Logical logical) return suspends(logical.left) || suspends(logical.right);
+        if (expr instanceof Expr.Grouping grouping) return suspends(grouping.expression);
+        if (expr instanceof Expr.Unary unary) return suspends(unary.right);
+        if (expr instanceof Expr.Assign assign) return suspends(assign.value);
+        if (expr instanceof Expr.Compound compound) return suspends(compound.value);
+        if (expr instanceof Expr.Get get) return suspends(get.object);
+        if (expr instanceof Expr.Set set) return suspends(set.object) || suspends(set.value);
+        // Literals, variables, `this`, `super` and the fused comparisons and increments
+        return false;
+    }
+
+    /**
+     * Whether running `stmt` can call Lox code, return, or break or continue a loop outside
+     * of it.
+     */
+    static boolean suspends(Stmt stmt) {
+        if (stmt.suspends == UNKNOWN) stmt.suspends = suspendsIn(stmt, false) ? SUSPENDS : INLINE;
+        return stmt.suspends == SUSPENDS;
+    }
+
+    /**
+     * @param inLoop Whether `break` and `continue` apply to a loop inside the statement being
+     *               analyzed, in which case they don't make it suspend
+     */
+    private static boolean suspendsIn(Stmt stmt, boolean inLoop) {
+        if (!inLoop) {
+            // Cached answers only hold for statements on their own
+            if (stmt.suspends != UNKNOWN) return stmt.suspends == SUSPENDS;
+        }
+
+        if (stmt instanceof Stmt.Expression expression) return suspends(expression.expression);
+        if (stmt instanceof Stmt.Print print) return suspends(print.expression);
+        if (stmt instanceof Stmt.Var var) return var.initializer != null && suspends(var.initializer);
+        if (stmt instanceof Stmt.Return) return true;
+        if (stmt instanceof Stmt.LoopControl) return !inLoop;
+        if (stmt instanceof Stmt.Block block) return suspendsIn(block.statements, inLoop);
+        if (stmt instanceof Stmt.LoopBody body) return suspendsIn(body.statements, inLoop);
+        if (stmt instanceof Stmt.If ifStmt) {
+            return suspends(ifStmt.condition)
+                    || suspendsIn(ifStmt.thenBranch, inLoop)
+                    || (ifStmt.elseBranch != null && suspendsIn(ifStmt.elseBranch, inLoop));
+        }
+        if (stmt instanceof Stmt.While whileStmt) {
+            return suspends(whileStmt.condition) || suspendsIn(whileStmt.body, true);
+        }
+        // A for-in can iterate over an instance whose `next()` is Lox code
+        if (stmt instanceof Stmt.ForIn) return true;
+        // Declarations don't run the code they declare
+        return false;
+    }
+
+    private static boolean suspendsIn(List<Stmt> statements, boolean inLoop) {
+        for (Stmt statement : statements) {
+            if (suspendsIn(statement, inLoop)) return true;
+        }
+        return false;
+    }
+
+    private void push(Object task) {
+        if (depth == tasks.length) {
+            int capacity = depth * 2;
+            tasks = Arrays.copyOf(tasks, capacity);
+            steps = Arrays.copyOf(steps, capacity);
+            heights = Arrays.copyOf(heights, capacity);
+            states = Arrays.copyOf(states, capacity);
+        }
+        tasks[depth] = task;
+        steps[depth] = 0;
+        heights[depth] = top;
+        states[depth] = null;
+        depth++;
+    }
+
+    /**
+     * Swaps the task at `i`, which must be the top one, for `task`.
+     */
+    private void replace(int i, Object task) {
+        tasks[i] = task;
+        steps[i] = 0;
+        states[i] = null;
+    }
+
+    /**
+     * Pops the top task, which is done.
+     */
+    private void finish() {
+        depth--;
+        tasks[depth] = null;
+        states[depth] = null;
+    }
+
+    /**
+     * Pops the top task, which is done, and pushes its value.
+     */
+    private void complete(Object value) {
+        finish();
+        pushOperand(value);
+    }
+
+    private void popTasks(int newDepth) {
+        Arrays.fill(tasks, newDepth, depth, null);
+        Arrays.fill(states, newDepth, depth, null);
+        depth = newDepth;
+    }
+
+    private void pushOperand(Object value) {
+        if (top == operands.length) operands = Arrays.copyOf(operands, top * 2);
+        operands[top++] = value;
+    }
+
+    private Object popOperand() {
+        Object value = operands[--top];
+        operands[top] = null;
+        return value;
+    }
+
+    private Object[] popOperands(int count) {
+        Object[] values = Arrays.copyOfRange(operands, top - count, top);
+        truncateOperands(top - count);
+        return values;
+    }
+
+    private void truncateOperands(int height) {
+        Arrays.fill(operands, height, top, null);
+        top = height;
+    }
+}
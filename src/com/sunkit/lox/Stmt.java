@@ -15,7 +15,11 @@ public abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
+    R visitForInStmt(ForIn stmt);
   }
+
+  // Filled in by the StackMachine, whether running the node can call Lox code or unwind
+  byte suspends;
   public static class Block extends Stmt {
     public Block(List<Stmt> statements) {
         this.statements = statements;
@@ -43,6 +47,13 @@ public abstract class Stmt {
     public final Token name;
     public final Expr.Variable superclass;
     public final List<Stmt.Function> methods;
+
+    // Filled in by the Resolver
+    public Binding binding = Binding.GLOBAL;
+    public int index;
+    public Binding superBinding;
+    public int superIndex;
+    public List<String> fields;
   }
   public static class LoopBody extends Stmt {
     public LoopBody(List<Stmt> statements) {
@@ -97,6 +108,14 @@ public abstract class Stmt {
     public final List<Token> params;
     public final List<Stmt> body;
     public final boolean isStaticMethod;
+
+    // Filled in by the Resolver
+    public Binding binding = Binding.GLOBAL;
+    public int index;
+    public boolean isMethod;
+    public int frameSize;
+    public Upvalue[] upvalues;
+    public int[] cellSlots;
   }
   public static class If extends Stmt {
     public If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -153,9 +172,14 @@ public abstract class Stmt {
 
     public final Token name;
     public final Expr initializer;
+
+    // Filled in by the Resolver
+    public Binding binding = Binding.GLOBAL;
+    public int index;
   }
   public static class While extends Stmt {
-    public While(Expr condition, Stmt body) {
+    public While(Token keyword, Expr condition, Stmt body) {
+        this.keyword = keyword;
         this.condition = condition;
         this.body = body;
     }
@@ -165,9 +189,28 @@ public abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    public final Token keyword;
     public final Expr condition;
     public final Stmt body;
   }
+  public static class ForIn extends Stmt {
+    public ForIn(Token keyword, Stmt.Var variable, Expr iterable, Stmt body) {
+        this.keyword = keyword;
+        this.variable = variable;
+        this.iterable = iterable;
+        this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForInStmt(this);
+    }
+
+    public final Token keyword;
+    public final Stmt.Var variable;
+    public final Expr iterable;
+    public final Stmt body;
+  }
 
 public abstract <R> R accept(Visitor<R> visitor);
 }
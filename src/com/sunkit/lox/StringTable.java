@@ -0,0 +1,73 @@
+package com.sunkit.lox;
+
+/**
+ * Interns the strings of a program's source: string literals and identifier names. Equal
+ * literals then evaluate to the same {@link String}, so `==` between them and lookups of
+ * names in hash maps are decided by identity before comparing any characters. Strings
+ * built at runtime are not interned, they still compare by content.
+ * <p>
+ * Lookups hash the characters in place, so a name that was seen before doesn't allocate a
+ * new string. Entries are never removed, the table only grows with the source. A table is
+ * not thread safe, it is shared by the scanners of a single session.
+ */
+final class StringTable {
+    private static final int MIN_CAPACITY = 64;
+
+    private String[] strings = new String[MIN_CAPACITY];
+    // Hash code of the string in the same slot
+    private int[] hashes = new int[MIN_CAPACITY];
+    private int size = 0;
+
+    /**
+     * @return The interned string with the characters `chars[from..to)`
+     */
+    String intern(char[] chars, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) hash = 31 * hash + chars[i];
+
+        int mask = strings.length - 1;
+        int slot = spread(hash) & mask;
+        for (String candidate = strings[slot]; candidate != null; candidate = strings[slot]) {
+            if (hashes[slot] == hash && contentEquals(candidate, chars, from, to)) return candidate;
+            slot = (slot + 1) & mask;
+        }
+
+        String string = new String(chars, from, to - from);
+        strings[slot] = string;
+        hashes[slot] = hash;
+        if (2 * ++size > strings.length) resize();
+        return string;
+    }
+
+    private static boolean contentEquals(String string, char[] chars, int from, int to) {
+        if (string.length() != to - from) return false;
+        for (int i = 0; i < string.length(); i++) {
+            if (string.charAt(i) != chars[from + i]) return false;
+        }
+        return true;
+    }
+
+    private void resize() {
+        String[] oldStrings = strings;
+        int[] oldHashes = hashes;
+        strings = new String[oldStrings.length * 2];
+        hashes = new int[oldStrings.length * 2];
+
+        int mask = strings.length - 1;
+        for (int i = 0; i < oldStrings.length; i++) {
+            if (oldStrings[i] == null) continue;
+            int slot = spread(oldHashes[i]) & mask;
+            while (strings[slot] != null) slot = (slot + 1) & mask;
+            strings[slot] = oldStrings[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    /**
+     * Mixes the high bits of the hash into the low bits the table uses, names often only
+     * differ in their last characters.
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
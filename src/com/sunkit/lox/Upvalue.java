@@ -0,0 +1,9 @@
+package com.sunkit.lox;
+
+/**
+ * Tells the interpreter where to find a variable a function captures when it creates the
+ * closure: a cell in a slot of the current frame (`isLocal`), or one of the current
+ * closure's own upvalues.
+ */
+public record Upvalue(boolean isLocal, int index) {
+}
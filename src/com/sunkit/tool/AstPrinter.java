@@ -45,6 +45,27 @@ public class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
+    @Override
+    public String visitCompareExpr(Expr.Compare expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return "(" + expr.operator.lexeme + " " + expr.left.name.lexeme + " " + expr.constant + ")";
+    }
+
+    @Override
+    public String visitCompoundExpr(Expr.Compound expr) {
+        return expr.name + " = " + "(" + expr.operator.lexeme + " " + expr.name.lexeme + " " + expr.value.accept(this) + ")";
+    }
+
+    @Override
+    public String visitIncrementExpr(Expr.Increment expr) {
+        // The delta of `x = x - c` is stored negated
+        return expr.name + " = " + "(+ " + expr.name.lexeme + " " + expr.delta + ")";
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("group", expr.expression);
@@ -14,31 +14,37 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign     : Token name, Expr value",
+                "Assign     : Token name, Expr value | Binding binding = Binding.GLOBAL, int index",
                 "Call       : Expr callee, Token paren, List<Expr> arguments",
-                "Get        : Expr object, Token name",
+                "Get        : Expr object, Token name | LoxClass layoutClass, int layoutSlot = -1, LoxClass methodClass, LoxFunction method, LoxClass methodHolder, int hierarchyVersion",
                 "Binary     : Expr left, Token operator, Expr right",
                 "Grouping   : Expr expression",
                 "Literal    : Object value",
                 "Logical    : Expr left, Token operator, Expr right",
-                "Set        : Expr object, Token name, Expr value",
-                "Super      : Token keyword, Token method",
-                "This       : Token keyword",
+                "Set        : Expr object, Token name, Expr value | LoxClass layoutClass, int layoutSlot = -1",
+                "Super      : Token keyword, Token method | Binding binding, int index, Binding thisBinding, int thisIndex",
+                "This       : Token keyword | Binding binding, int index",
                 "Unary      : Token operator, Expr right",
-                "Variable   : Token name"
+                "Variable   : Token name | Binding binding = Binding.GLOBAL, int index",
+                // Fused forms of common loop idioms, see Parser
+                "Compare    : Expr.Variable left, Token operator, Expr.Variable right",
+                "CompareConstant: Expr.Variable left, Token operator, double constant",
+                "Compound   : Token name, Token operator, Expr value | Binding binding = Binding.GLOBAL, int index, Specialization state = Specialization.UNINITIALIZED",
+                "Increment  : Token name, Token operator, double delta | Binding binding = Binding.GLOBAL, int index, Specialization state = Specialization.UNINITIALIZED"
         ));
         defineAst(outputDir, "Stmt", Arrays.asList(
                 "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | Binding binding = Binding.GLOBAL, int index, Binding superBinding, int superIndex, List<String> fields",
                 "LoopBody   : List<Stmt> statements",
                 "LoopControl: Token keyword",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body, boolean isStaticMethod | Binding binding = Binding.GLOBAL, int index, boolean isMethod, int frameSize, Upvalue[] upvalues, int[] cellSlots",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "Var        : Token name, Expr initializer | Binding binding = Binding.GLOBAL, int index",
+                "While      : Token keyword, Expr condition, Stmt body",
+                "ForIn      : Token keyword, Stmt.Var variable, Expr iterable, Stmt body"
         ));
     }
 
@@ -54,12 +60,18 @@ public class GenerateAst {
 
         defineVisitor(writer, baseName, types);
 
+        writer.println();
+        writer.println("  // Filled in by the StackMachine, whether running the node can call Lox code or unwind");
+        writer.println("  byte suspends;");
+
         // The AST classes
         for (String type : types) {
             String[] splits = type.split(":");
             String className = splits[0].trim();
-            String fields = splits[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fieldGroups = splits[1].split("\\|");
+            String fields = fieldGroups[0].trim();
+            String annotations = fieldGroups.length > 1 ? fieldGroups[1].trim() : null;
+            defineType(writer, baseName, className, fields, annotations);
         }
 
         // The base accept() method
@@ -71,7 +83,12 @@ public class GenerateAst {
         writer.close();
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    /**
+     * @param annotations Mutable fields filled in after parsing (by the resolver), not set by
+     *                    the constructor. May be `null`.
+     */
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+                                   String annotations) {
         writer.println("  public static class " + className + " extends " + baseName + " {");
 
         // Constructor
@@ -98,6 +115,14 @@ public class GenerateAst {
             writer.println("    public final " + field + ";");
         }
 
+        if (annotations != null) {
+            writer.println();
+            writer.println("    // Filled in by the Resolver");
+            for (String annotation : annotations.split(", ")) {
+                writer.println("    public " + annotation + ";");
+            }
+        }
+
         writer.println("  }");
     }
 
@@ -0,0 +1,136 @@
+package com.sunkit.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the Lox scripts in a test directory (`lox-src/test` by default) and checks their
+ * output against comments in the script, in the style of the Crafting Interpreters suite:
+ * <ul>
+ *     <li>`// expect: text` is the next line the script prints.</li>
+ *     <li>`// expect runtime error: message` is the runtime error it must stop with.</li>
+ *     <li>`// flags: -Xmx64m -Dlox.memoize=100` are extra options for the JVM running it.</li>
+ * </ul>
+ * Every script runs in its own JVM, once with the default recursive evaluator and once on
+ * the explicit stack, and must behave the same in both.
+ * <p>
+ * Usage: run_tests [test directory]
+ */
+public class RunTests {
+    private static final String EXPECT = "// expect: ";
+    private static final String EXPECT_ERROR = "// expect runtime error: ";
+    private static final String FLAGS = "// flags: ";
+    private static final List<String> MODES = List.of("", "-Dlox.explicitStack=1000000000");
+    private static final long TIMEOUT_SECONDS = 120;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 1) {
+            System.err.println("Usage: run_tests [test directory]");
+            System.exit(64);
+        }
+        Path directory = Paths.get(args.length == 1 ? args[0] : "lox-src/test");
+
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(directory)) {
+            scripts = files.filter(file -> file.toString().endsWith(".lox")).sorted().toList();
+        }
+
+        int failed = 0;
+        for (Path script : scripts) {
+            for (String mode : MODES) {
+                List<String> failures = run(script, mode);
+                String name = script.getFileName() + (mode.isEmpty() ? "" : " (explicit stack)");
+                if (failures.isEmpty()) {
+                    System.out.println("PASS " + name);
+                } else {
+                    failed++;
+                    System.out.println("FAIL " + name);
+                    for (String failure : failures) System.out.println("    " + failure);
+                }
+            }
+        }
+
+        System.out.printf("%d of %d runs passed%n", scripts.size() * MODES.size() - failed, scripts.size() * MODES.size());
+        if (failed > 0) System.exit(1);
+    }
+
+    private static List<String> run(Path script, String mode) throws IOException, InterruptedException {
+        List<String> expected = new ArrayList<>();
+        String expectedError = null;
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        if (!mode.isEmpty()) command.add(mode);
+
+        for (String line : Files.readAllLines(script, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf("//");
+            if (comment < 0) continue;
+            String text = line.substring(comment);
+            if (text.startsWith(EXPECT)) {
+                expected.add(text.substring(EXPECT.length()));
+            } else if (text.startsWith(EXPECT_ERROR)) {
+                expectedError = text.substring(EXPECT_ERROR.length());
+            } else if (text.startsWith(FLAGS)) {
+                command.addAll(Arrays.asList(text.substring(FLAGS.length()).trim().split("\\s+")));
+            }
+        }
+        command.add("com.sunkit.lox.Lox");
+        command.add(script.toString());
+
+        File out = File.createTempFile("lox-test", ".out");
+        File err = File.createTempFile("lox-test", ".err");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(out)
+                    .redirectError(err)
+                    .start();
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return List.of("Timed out after " + TIMEOUT_SECONDS + " s.");
+            }
+
+            List<String> output = Files.readAllLines(out.toPath(), StandardCharsets.UTF_8);
+            List<String> errors = Files.readAllLines(err.toPath(), StandardCharsets.UTF_8);
+            return check(expected, expectedError, process.exitValue(), output, errors);
+        } finally {
+            out.delete();
+            err.delete();
+        }
+    }
+
+    private static List<String> check(List<String> expected, String expectedError, int exitCode,
+                                      List<String> output, List<String> errors) {
+        List<String> failures = new ArrayList<>();
+        for (int i = 0; i < Math.max(expected.size(), output.size()); i++) {
+            String want = i < expected.size() ? expected.get(i) : null;
+            String got = i < output.size() ? output.get(i) : null;
+            if (want == null) {
+                failures.add("Unexpected output: " + got);
+            } else if (got == null) {
+                failures.add("Missing output: " + want);
+            } else if (!want.equals(got)) {
+                failures.add("Expected '" + want + "' but got '" + got + "'.");
+            }
+        }
+
+        int expectedExit = expectedError == null ? 0 : 70;
+        if (expectedError != null && !errors.contains(expectedError)) {
+            failures.add("Missing runtime error: " + expectedError);
+        }
+        if (exitCode != expectedExit) {
+            failures.add("Expected exit code " + expectedExit + " but got " + exitCode + ".");
+            for (String line : errors.subList(0, Math.min(errors.size(), 5))) failures.add(line);
+        }
+        return failures;
+    }
+}